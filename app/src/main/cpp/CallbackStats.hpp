@@ -0,0 +1,207 @@
+/*
+ * CallbackStats.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Timing telemetry for the audio callback: how long each callback took in
+ * wall and CPU time, and how much of its deadline (the duration of the
+ * frames it rendered) that was. CostStats does the same for each slot of
+ * the chain, so the pedal that pushes a chain into xruns can be named.
+ *
+ * Every callback lands in log-bucketed histograms, eight buckets per octave,
+ * so percentiles come out within about 10% over any range of values without
+ * storing samples. The audio thread is the only writer and only ever does
+ * relaxed atomic adds; any other thread may take a snapshot at any time. A
+ * snapshot taken mid-callback can be off by that one callback, never torn.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <ctime>
+
+// ============================================================================
+// LogHistogram - Counts of non-negative integers in log-spaced buckets
+// ============================================================================
+
+class LogHistogram {
+public:
+    static constexpr uint32_t kSubBits = 3;                 // 8 buckets per octave
+    static constexpr uint32_t kLinear = 2u << kSubBits;     // exact below this
+    static constexpr uint32_t kOctaves = 40;
+    static constexpr uint32_t kBuckets = kLinear + kOctaves * (1u << kSubBits);
+
+    // Audio thread
+    void record(uint64_t value) {
+        bump(counts_[bucketOf(value)], 1);
+        bump(total_, 1);
+        bump(sum_, value);
+        if (value > max_.load(std::memory_order_relaxed))
+            max_.store(value, std::memory_order_relaxed);
+    }
+
+    // Audio thread
+    void clear() {
+        for (auto& c : counts_) c.store(0, std::memory_order_relaxed);
+        total_.store(0, std::memory_order_relaxed);
+        sum_.store(0, std::memory_order_relaxed);
+        max_.store(0, std::memory_order_relaxed);
+    }
+
+    uint64_t count() const { return total_.load(std::memory_order_relaxed); }
+    uint64_t max() const { return max_.load(std::memory_order_relaxed); }
+
+    double mean() const {
+        uint64_t n = count();
+        return n ? (double) sum_.load(std::memory_order_relaxed) / n : 0.0;
+    }
+
+    // Upper bound of the bucket holding the q-th quantile, 0 <= q <= 1
+    uint64_t percentile(double q) const {
+        uint64_t n = count();
+        if (n == 0) return 0;
+        uint64_t rank = std::max<uint64_t>(1, (uint64_t) (q * n + 0.5));
+        uint64_t seen = 0;
+        for (uint32_t b = 0; b < kBuckets; ++b) {
+            seen += counts_[b].load(std::memory_order_relaxed);
+            if (seen >= rank) return std::min(upperBound(b), max());
+        }
+        return max();
+    }
+
+private:
+    static void bump(std::atomic<uint64_t>& counter, uint64_t by) {
+        // Single writer, no read-modify-write needed
+        counter.store(counter.load(std::memory_order_relaxed) + by, std::memory_order_relaxed);
+    }
+
+    static uint32_t bucketOf(uint64_t value) {
+        if (value < kLinear) return (uint32_t) value;
+        const uint32_t octave = 63 - __builtin_clzll(value);       // >= kSubBits + 1
+        const uint32_t sub = (uint32_t) (value >> (octave - kSubBits)) & ((1u << kSubBits) - 1);
+        const uint32_t b = kLinear + (octave - kSubBits - 1) * (1u << kSubBits) + sub;
+        return std::min(b, kBuckets - 1);
+    }
+
+    static uint64_t upperBound(uint32_t bucket) {
+        if (bucket < kLinear) return bucket;
+        const uint32_t octave = (bucket - kLinear) / (1u << kSubBits) + kSubBits + 1;
+        const uint64_t sub = (bucket - kLinear) % (1u << kSubBits);
+        const uint64_t width = 1ull << (octave - kSubBits);
+        return (1ull << octave) + (sub + 1) * width - 1;
+    }
+
+    std::atomic<uint64_t> counts_[kBuckets] = {};
+    std::atomic<uint64_t> total_{0};
+    std::atomic<uint64_t> sum_{0};
+    std::atomic<uint64_t> max_{0};
+};
+
+// ============================================================================
+// CallbackStats - Per-callback timing, underflows and the load it puts on
+// the deadline
+// ============================================================================
+
+class CallbackStats {
+public:
+    // Load is recorded in these fractions of the deadline
+    static constexpr uint64_t kLoadScale = 1024;
+
+    // Audio thread, at the start of a callback
+    void begin() {
+        if (reset_.exchange(false, std::memory_order_acquire)) {
+            wall_.clear();
+            cpu_.clear();
+            load_.clear();
+            underflows_.store(0, std::memory_order_relaxed);
+        }
+        wall_start_ = now(CLOCK_MONOTONIC);
+        cpu_start_ = now(CLOCK_THREAD_CPUTIME_ID);
+    }
+
+    // Audio thread, once the callback has rendered numFrames
+    void end(int32_t numFrames, int32_t sampleRate) {
+        const int64_t wall = now(CLOCK_MONOTONIC) - wall_start_;
+        const int64_t cpu = now(CLOCK_THREAD_CPUTIME_ID) - cpu_start_;
+        wall_.record(std::max<int64_t>(wall, 0));
+        cpu_.record(std::max<int64_t>(cpu, 0));
+
+        if (numFrames > 0 && sampleRate > 0) {
+            const int64_t deadline = (int64_t) numFrames * 1000000000 / sampleRate;
+            deadline_.store(deadline, std::memory_order_relaxed);
+            load_.record(std::max<int64_t>(wall, 0) * kLoadScale / std::max<int64_t>(deadline, 1));
+        }
+    }
+
+    // Audio thread: the input stream had fewer frames than the output wanted
+    void underflow() {
+        underflows_.store(underflows_.load(std::memory_order_relaxed) + 1,
+                          std::memory_order_relaxed);
+    }
+
+    // Any thread: start over, takes effect at the next callback
+    void reset() { reset_.store(true, std::memory_order_release); }
+
+    const LogHistogram& wallNanos() const { return wall_; }
+    const LogHistogram& cpuNanos() const { return cpu_; }
+    const LogHistogram& load() const { return load_; }     // in 1/kLoadScale of the deadline
+    int64_t deadlineNanos() const { return deadline_.load(std::memory_order_relaxed); }
+    int64_t underflows() const { return underflows_.load(std::memory_order_relaxed); }
+
+private:
+    static int64_t now(clockid_t clock) {
+        timespec ts;
+        clock_gettime(clock, &ts);
+        return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+    }
+
+    LogHistogram wall_, cpu_, load_;
+    std::atomic<int64_t> deadline_{0};
+    std::atomic<int64_t> underflows_{0};
+    std::atomic<bool> reset_{false};
+
+    // Audio thread only
+    int64_t wall_start_ = 0;
+    int64_t cpu_start_ = 0;
+};
+
+// ============================================================================
+// CostStats - What one plugin slot costs per block
+// ============================================================================
+
+struct CostSnapshot {
+    uint64_t blocks;
+    double meanNanos, p99Nanos, maxNanos;
+    double shareMean, shareP99, shareMax;   // fraction of the block's duration
+};
+
+class CostStats {
+public:
+    // Audio thread: the slot took nanos of a block lasting budgetNanos
+    void record(int64_t nanos, int64_t budgetNanos) {
+        if (reset_.exchange(false, std::memory_order_acquire)) {
+            nanos_.clear();
+            share_.clear();
+        }
+        nanos = std::max<int64_t>(nanos, 0);
+        nanos_.record(nanos);
+        share_.record(nanos * CallbackStats::kLoadScale / std::max<int64_t>(budgetNanos, 1));
+    }
+
+    // Any thread: start over, takes effect at the next block
+    void reset() { reset_.store(true, std::memory_order_release); }
+
+    // Any thread
+    CostSnapshot snapshot() const {
+        const double share = 1.0 / CallbackStats::kLoadScale;
+        return { nanos_.count(),
+                 nanos_.mean(), (double) nanos_.percentile(0.99), (double) nanos_.max(),
+                 share_.mean() * share, share_.percentile(0.99) * share, share_.max() * share };
+    }
+
+private:
+    LogHistogram nanos_, share_;
+    std::atomic<bool> reset_{false};
+};
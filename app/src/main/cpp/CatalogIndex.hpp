@@ -0,0 +1,177 @@
+/*
+ * CatalogIndex.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Search over the plugin catalog for the add-pedal picker: free text over
+ * the name, author and class of each plugin, narrowed by class and by the
+ * number of audio inputs and outputs, in pages.
+ *
+ * Built once when the catalog is loaded. Every word of the name, author and
+ * class goes into a sorted token table, so a query word that starts a token
+ * is found with a binary search; one that only occurs inside a word is
+ * found by scanning a lowercased copy of the same text, which for a couple
+ * of thousand plugins is a few hundred kilobytes at most. Plugins matching
+ * more query words at the start of a token rank first, then by name.
+ *
+ * Read-only once built, any thread may search.
+ */
+
+#pragma once
+
+#include "PluginCatalog.hpp"
+
+#include <algorithm>
+#include <cctype>
+#include <cstdint>
+#include <string>
+#include <utility>
+#include <vector>
+
+class CatalogIndex {
+public:
+    struct Query {
+        std::string text;           // words, all must match; empty matches all
+        std::string category;       // plugin class, empty for any
+        int32_t audioInputs = -1;   // -1 for any
+        int32_t audioOutputs = -1;
+    };
+
+    void build(const PluginCatalog& catalog) {
+        const uint32_t count = catalog.size();
+        entries_.assign(count, Entry{});
+        tokens_.clear();
+        categories_.clear();
+
+        for (uint32_t i = 0; i < count; ++i) {
+            const PluginCatalog::Plugin& plugin = catalog.plugin(i);
+            Entry& entry = entries_[i];
+            entry.name = lower(catalog.string(plugin.name));
+            entry.category = lower(catalog.string(plugin.className));
+            entry.text = entry.name + '\n' + lower(catalog.string(plugin.author)) + '\n'
+                         + entry.category;
+
+            for (uint32_t p = 0; p < plugin.portCount; ++p) {
+                const PluginCatalog::Port& port = catalog.port(plugin, p);
+                if (port.type != PluginCatalog::Audio) continue;
+                if (port.flags & PluginCatalog::Input) entry.audioInputs++;
+                else entry.audioOutputs++;
+            }
+
+            tokenize(entry.text, i);
+            addCategory(catalog.string(plugin.className));
+        }
+        std::sort(tokens_.begin(), tokens_.end());
+        tokens_.erase(std::unique(tokens_.begin(), tokens_.end()), tokens_.end());
+
+        by_name_.resize(count);
+        for (uint32_t i = 0; i < count; ++i) by_name_[i] = i;
+        std::stable_sort(by_name_.begin(), by_name_.end(), [this](uint32_t a, uint32_t b) {
+            return entries_[a].name < entries_[b].name;
+        });
+        std::sort(categories_.begin(), categories_.end());
+    }
+
+    /*
+     * Plugins matching the query, best first.
+     *
+     * @param offset results to skip, for paging
+     * @param limit  most results to return
+     * @param out    catalog indices of the page
+     * @return how many plugins match in all
+     */
+    uint32_t search(const Query& query, uint32_t offset, uint32_t limit,
+                    std::vector<uint32_t>& out) const {
+        out.clear();
+        const std::vector<std::string> words = split(lower(query.text));
+        const std::string category = lower(query.category);
+
+        // Per plugin: -1 filtered out, otherwise how many words start a token
+        std::vector<int32_t> score(entries_.size(), 0);
+        for (size_t i = 0; i < entries_.size(); ++i) {
+            const Entry& entry = entries_[i];
+            if ((!category.empty() && entry.category != category)
+                || (query.audioInputs >= 0 && entry.audioInputs != query.audioInputs)
+                || (query.audioOutputs >= 0 && entry.audioOutputs != query.audioOutputs))
+                score[i] = -1;
+        }
+
+        std::vector<uint8_t> prefix(entries_.size());
+        for (const std::string& word : words) {
+            std::fill(prefix.begin(), prefix.end(), 0);
+            auto it = std::lower_bound(tokens_.begin(), tokens_.end(),
+                                       std::make_pair(word, (uint32_t) 0));
+            for (; it != tokens_.end() && it->first.compare(0, word.size(), word) == 0; ++it)
+                prefix[it->second] = 1;
+
+            for (size_t i = 0; i < entries_.size(); ++i) {
+                if (score[i] < 0) continue;
+                if (prefix[i]) score[i]++;
+                else if (entries_[i].text.find(word) == std::string::npos) score[i] = -1;
+            }
+        }
+
+        // Name order within each score, highest score first
+        const int32_t best = (int32_t) words.size();
+        uint32_t total = 0;
+        for (int32_t s = best; s >= 0; --s) {
+            for (uint32_t i : by_name_) {
+                if (score[i] != s) continue;
+                if (total >= offset && out.size() < limit) out.push_back(i);
+                total++;
+            }
+        }
+        return total;
+    }
+
+    // Plugin classes with at least one plugin, sorted
+    const std::vector<std::string>& categories() const { return categories_; }
+
+private:
+    struct Entry {
+        std::string name;       // lowercase, for ordering
+        std::string category;   // lowercase
+        std::string text;       // lowercase name, author and class
+        int32_t audioInputs = 0;
+        int32_t audioOutputs = 0;
+    };
+
+    static std::string lower(const char* s) { return lower(std::string(s ? s : "")); }
+
+    static std::string lower(std::string s) {
+        for (char& c : s) c = (char) std::tolower((unsigned char) c);
+        return s;
+    }
+
+    // Runs of letters and digits; anything else, including UTF-8 beyond
+    // ASCII, separates words
+    static std::vector<std::string> split(const std::string& s) {
+        std::vector<std::string> words;
+        std::string word;
+        for (char c : s) {
+            if (std::isalnum((unsigned char) c)) {
+                word += c;
+            } else if (!word.empty()) {
+                words.push_back(std::move(word));
+                word.clear();
+            }
+        }
+        if (!word.empty()) words.push_back(std::move(word));
+        return words;
+    }
+
+    void tokenize(const std::string& text, uint32_t plugin) {
+        for (std::string& word : split(text)) tokens_.emplace_back(std::move(word), plugin);
+    }
+
+    void addCategory(const char* name) {
+        if (!name || !*name) return;
+        if (std::find(categories_.begin(), categories_.end(), name) == categories_.end())
+            categories_.emplace_back(name);
+    }
+
+    std::vector<Entry> entries_;
+    std::vector<std::pair<std::string, uint32_t>> tokens_;    // sorted (token, plugin)
+    std::vector<uint32_t> by_name_;                          // plugins in name order
+    std::vector<std::string> categories_;
+};
@@ -0,0 +1,65 @@
+/*
+ * CommandQueue.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Wait-free single-producer/single-consumer queue of fixed-size records on
+ * top of lv2_ringbuffer. Used to hand control changes from the JNI thread to
+ * the audio callback, and retired objects back the other way, without either
+ * side ever taking a lock or allocating.
+ */
+
+#pragma once
+
+#include "lv2_ringbuffer.h"
+
+#include <cstddef>
+#include <type_traits>
+
+template <typename T>
+class CommandQueue {
+    static_assert(std::is_trivially_copyable<T>::value,
+                  "CommandQueue records are copied byte-wise");
+
+public:
+    // capacity is rounded up to a power of two number of records
+    explicit CommandQueue(size_t capacity = 1024) {
+        size_t bytes = 1;
+        while (bytes < capacity * sizeof(T)) bytes <<= 1;
+        rb_ = lv2_ringbuffer_create(bytes);
+    }
+
+    ~CommandQueue() {
+        lv2_ringbuffer_free(rb_);
+    }
+
+    CommandQueue(const CommandQueue&) = delete;
+    CommandQueue& operator=(const CommandQueue&) = delete;
+
+    // Producer side. Returns false, and writes nothing, when full.
+    bool push(const T& record) {
+        if (lv2_ringbuffer_write_space(rb_) < sizeof(T)) return false;
+        lv2_ringbuffer_write(rb_, (const char*)&record, sizeof(T));
+        return true;
+    }
+
+    // Consumer side. Returns false when empty.
+    bool pop(T& record) {
+        if (lv2_ringbuffer_read_space(rb_) < sizeof(T)) return false;
+        lv2_ringbuffer_read(rb_, (char*)&record, sizeof(T));
+        return true;
+    }
+
+    // Producer side: whether the next count push() calls would succeed. Only
+    // the consumer frees space, so a true answer stays true for the producer.
+    bool canPush(size_t count = 1) const {
+        return lv2_ringbuffer_write_space(rb_) >= count * sizeof(T);
+    }
+
+    bool empty() const {
+        return lv2_ringbuffer_read_space(rb_) < sizeof(T);
+    }
+
+private:
+    lv2_ringbuffer_t* rb_;
+};
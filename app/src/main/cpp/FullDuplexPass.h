@@ -17,56 +17,463 @@
 #ifndef SAMPLES_FULLDUPLEXPASS_H
 #define SAMPLES_FULLDUPLEXPASS_H
 
-#include "LV2Plugin.hpp"
+#include <chrono>
+#include <cmath>
+#include "CallbackStats.hpp"
+#include "Interleave.hpp"
+#include "LatencyProbe.hpp"
+#include "PluginChain.hpp"
+#include "Watchdog.hpp"
 
 class FullDuplexPass : public oboe::FullDuplexStream {
 public:
-    LV2Plugin* plugin, *plugin1, *plugin2, *plugin3, *plugin4;
+    PluginChain *chain = nullptr;
+    CallbackStats *stats = nullptr;
+    Watchdog *watchdog = nullptr;
+    LatencyProbe *probe = nullptr;
     LilvInstance *instance;
+
+    // Length of the equal-power crossfade when a slot's plugin is replaced
+    static constexpr int32_t kCrossfadeMillis = 30;
+
+    // Replacements still fading out at once in one slot. A plugin replaced
+    // again mid-fade keeps fading out what it replaced, with a bus per
+    // level; anything deeper than this is cut.
+    static constexpr int32_t kMaxFadeDepth = 4;
+
+    // Widest stream the chain renders planar; anything wider passes through
+    static constexpr int32_t kMaxChannels = 2;
+
+    // Plugins with more audio ports than this on either side pass through
+    static constexpr uint32_t kMaxAudioPorts = 16;
+
+    // Range of the internal block size, always a power of two
+    static constexpr int32_t kMinBlockFrames = 16;
+    static constexpr int32_t kMaxBlockFrames = 256;
+
+    static bool isValidBlockSize(int32_t frames) {
+        return frames >= kMinBlockFrames && frames <= kMaxBlockFrames
+               && (frames & (frames - 1)) == 0;
+    }
+
+    /**
+     * Allocate the FIFOs and planar buses used to run the effect chain. Must
+     * be called before start(), never from the audio thread.
+     *
+     * The chain always runs on blocks of exactly blockFrames, whatever burst
+     * size the device uses. Input is queued until a whole block is there and
+     * output is played from the previous block, which adds blockFrames of
+     * latency in exchange for a fixed, predictable cost per block.
+     *
+     * @param blockFrames internal block size, see isValidBlockSize()
+     * @param inputChannels channel count of the input stream
+     * @param sampleRate stream sample rate, sets the crossfade length
+     */
+    void prepare(int32_t blockFrames, int32_t inputChannels, int32_t sampleRate) {
+        mBlockFrames = isValidBlockSize(blockFrames) ? blockFrames : kMinBlockFrames;
+        for (auto &bus : mBuses) {
+            for (auto &channel : bus) {
+                channel.reset(new float[mBlockFrames]);
+                std::fill(channel.get(), channel.get() + mBlockFrames, 0.0f);
+            }
+        }
+        mDiscard.reset(new float[mBlockFrames]);
+
+        mFifoInputChannels = std::max(inputChannels, 1);
+        mInputFifo.reset(new float[mBlockFrames * mFifoInputChannels]);
+        mOutputFifo.reset(new float[mBlockFrames * kMaxChannels]);
+        std::fill(mOutputFifo.get(), mOutputFifo.get() + mBlockFrames * kMaxChannels, 0.0f);
+        mFifoFrames = 0;
+        mProbeInput.reset(new float[kProbeChunk * mFifoInputChannels]);
+
+        mFadeFrames = std::max(sampleRate * kCrossfadeMillis / 1000, 1);
+        mBlockNanos = (int64_t) mBlockFrames * 1000000000 / std::max(sampleRate, 1);
+        if (chain) chain->clock().setSampleRate(sampleRate);
+    }
+
+    /**
+     * Treat the input as a single mono source, e.g. a guitar. Only one input
+     * channel is read, mono plugins run once instead of once per channel, and
+     * the signal is spread to every output channel only at the first plugin
+     * that needs more than one channel, or at the output.
+     * Must be called before start().
+     *
+     * @param channel input channel to read, or -1 for normal multichannel input
+     */
+    void setMonoInput(int32_t channel) {
+        mMonoChannel = channel;
+    }
+
     virtual oboe::DataCallbackResult
     onBothStreamsReady(
             const void *inputData,
             int   numInputFrames,
             void *outputData,
             int   numOutputFrames) {
-        // Copy the input samples to the output with a little arbitrary gain change.
-
         // This code assumes the data format for both streams is Float.
         const float *inputFloats = static_cast<const float *>(inputData);
         float *outputFloats = static_cast<float *>(outputData);
 
-        // It also assumes the channel count for each stream is the same.
-        int32_t samplesPerFrame = getOutputStream()->getChannelCount();
-        int32_t numInputSamples = numInputFrames * samplesPerFrame;
-        int32_t numOutputSamples = numOutputFrames * samplesPerFrame;
-
-        // It is possible that there may be fewer input than output samples.
-        int32_t samplesToProcess = std::min(numInputSamples, numOutputSamples);
-        for (int32_t i = 0; i < samplesToProcess; i++) {
-//            *outputFloats++ = *inputFloats++ * 0.95; // do some arbitrary processing
-//             inputFloats += samplesPerFrame;
-//             outputFloats += samplesPerFrame;
-        }
-
-        if (plugin1)
-            plugin1->process(const_cast<float *>(inputFloats), outputFloats, samplesToProcess);
-        if (plugin2)
-            plugin2->process(const_cast<float *>(inputFloats), outputFloats, samplesToProcess);
-        if (plugin3)
-            plugin3->process(const_cast<float *>(inputFloats), outputFloats, samplesToProcess);
-        if (plugin4)
-            plugin4->process(const_cast<float *>(inputFloats), outputFloats, samplesToProcess);
-
-//        lilv_instance_connect_port(instance, 0, const_cast<float *>(outputFloats));
-//        lilv_instance_connect_port(instance, 1, (void *) inputFloats);
-//        lilv_instance_run(instance, samplesToProcess);
-        // If there are fewer input samples then clear the rest of the buffer.
-        int32_t samplesLeft = numOutputSamples - numInputSamples;
+        // The channel counts only differ in mono input mode.
+        mInputChannels = getInputStream()->getChannelCount();
+        mChannels = getOutputStream()->getChannelCount();
+
+        // It is possible that there may be fewer input than output frames.
+        int32_t framesToProcess = std::min(numInputFrames, numOutputFrames);
+        if (stats && numInputFrames < numOutputFrames) stats->underflow();
+
+        // Control events are timestamped against the input frames; the next
+        // one this callback reads is the position of the block being filled
+        // plus what is already in the FIFO
+        if (chain) chain->clock().anchor(chain->position() + mFifoFrames, framesToProcess);
+
+        if (mInputChannels <= mFifoInputChannels && mChannels <= kMaxChannels) {
+            LatencyProbe::Mode probing = probe ? probe->mode() : LatencyProbe::Idle;
+            if (probing == LatencyProbe::Device)
+                probeDevice(inputFloats, outputFloats, framesToProcess);
+            else if (probing == LatencyProbe::Chain)
+                probeChain(outputFloats, framesToProcess);
+            else
+                processBlocks(inputFloats, outputFloats, framesToProcess);
+        } else {
+            // Not what prepare() was told, the FIFOs cannot hold it
+            framesToProcess = 0;
+        }
+
+        // If there are fewer input frames then clear the rest of the buffer.
+        int32_t samplesLeft = (numOutputFrames - framesToProcess) * mChannels;
         for (int32_t i = 0; i < samplesLeft; i++) {
-            *outputFloats++ = 0.0; // silence
+            outputFloats[framesToProcess * mChannels + i] = 0.0; // silence
         }
 
         return oboe::DataCallbackResult::Continue;
     }
+
+private:
+    // One planar buffer per channel
+    using Bus = std::unique_ptr<float[]>[kMaxChannels];
+
+    enum BusId { kInput, kPing, kPong, kFade, kNumBuses = kFade + kMaxFadeDepth };
+
+    /*
+     * Feed the callback's frames through the FIFOs: each frame goes into the
+     * input FIFO and takes its place in the output from the output FIFO, and
+     * every time the input FIFO is full the chain renders it into the output
+     * FIFO as one block.
+     */
+    void processBlocks(const float *input, float *output, int32_t numFrames) {
+        int32_t done = 0;
+        while (done < numFrames) {
+            int32_t count = std::min(numFrames - done, mBlockFrames - mFifoFrames);
+            std::copy(input + done * mInputChannels,
+                      input + (done + count) * mInputChannels,
+                      mInputFifo.get() + mFifoFrames * mInputChannels);
+            std::copy(mOutputFifo.get() + mFifoFrames * mChannels,
+                      mOutputFifo.get() + (mFifoFrames + count) * mChannels,
+                      output + done * mChannels);
+            done += count;
+            mFifoFrames += count;
+
+            if (mFifoFrames == mBlockFrames) {
+                processChain(mInputFifo.get(), mOutputFifo.get(), mBlockFrames);
+                mFifoFrames = 0;
+            }
+        }
+    }
+
+    /*
+     * Latency measurement through the device: play the probe signal on every
+     * output channel in place of the chain, and record the input channel the
+     * chain would read. Both are counted in the same callback frames.
+     */
+    void probeDevice(const float *input, float *output, int32_t numFrames) {
+        const int32_t channel = mMonoChannel >= 0 && mMonoChannel < mInputChannels ? mMonoChannel : 0;
+        for (int32_t i = 0; i < numFrames; i++) {
+            const float sample = probe->signal(0);
+            for (int32_t c = 0; c < mChannels; c++) output[i * mChannels + c] = sample;
+            probe->capture(input[i * mInputChannels + channel]);
+        }
+    }
+
+    /*
+     * Latency measurement through the FIFOs and the chain: feed the probe
+     * signal to every input channel instead of the device input, and record
+     * the first channel of the output. The device plays silence meanwhile, so
+     * nothing feeds back.
+     */
+    void probeChain(float *output, int32_t numFrames) {
+        int32_t done = 0;
+        while (done < numFrames) {
+            int32_t count = std::min(numFrames - done, kProbeChunk);
+            float *input = mProbeInput.get();
+            for (int32_t i = 0; i < count; i++) {
+                const float sample = probe->signal(i);
+                for (int32_t c = 0; c < mInputChannels; c++) input[i * mInputChannels + c] = sample;
+            }
+
+            float *out = output + done * mChannels;
+            processBlocks(input, out, count);
+            for (int32_t i = 0; i < count; i++) probe->capture(out[i * mChannels]);
+            std::fill(out, out + count * mChannels, 0.0f);
+            done += count;
+        }
+    }
+
+    /*
+     * Run the active slots in series: every slot reads what the previous one
+     * wrote. The interleaved input is split into planar channel buffers once,
+     * intermediate results alternate between two buses, and the result is
+     * interleaved back into the output once.
+     */
+    void processChain(const float *input, float *output, int32_t numFrames) {
+        // Applies pending parameter, bypass and chain changes first
+        const ChainSnapshot *snapshot = chain ? chain->acquire(numFrames) : nullptr;
+        auto start = std::chrono::steady_clock::now();
+        bool bypassed = probe && probe->mode() == LatencyProbe::Chain && probe->bypass();
+        runSlots(bypassed ? nullptr : snapshot, input, output, numFrames);
+        // A bypassed block says nothing about what the slots cost, and would
+        // let the watchdog restore ones it throttled
+        if (watchdog && !bypassed) {
+            auto nanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                    std::chrono::steady_clock::now() - start).count();
+            watchdog->check(snapshot, nanos, mBlockNanos, mFadeFrames / numFrames + 1);
+        }
+        if (chain) chain->release();
+    }
+
+    void runSlots(const ChainSnapshot *snapshot, const float *input, float *output,
+                  int32_t numFrames) {
+        // Empty and bypassed slots are skipped, unless a change lands on
+        // them within the block
+        int32_t numActive = 0;
+        if (snapshot) {
+            for (auto *slot : snapshot->slots)
+                if (isLive(slot)) numActive++;
+        }
+
+        bool mono = mMonoChannel >= 0 && mMonoChannel < mInputChannels;
+        if (numActive == 0 && !mono) {
+            std::copy(input, input + numFrames * mChannels, output);
+            return;
+        }
+
+        float *planes[kMaxChannels];
+
+        // Number of channels carried between slots, the stream width
+        // unless a mono input has not met a multichannel plugin yet
+        int32_t width = mChannels;
+        channels(kInput, planes);
+        if (mono) {
+            extractChannel(input, planes[0], mInputChannels, mMonoChannel, numFrames);
+            width = 1;
+        } else {
+            deinterleave(input, planes, mChannels, numFrames);
+        }
+
+        BusId src = kInput;
+        int32_t pass = 0;
+        for (size_t i = 0; numActive > 0 && i < snapshot->slots.size(); i++) {
+            ChainSlot *slot = snapshot->slots[i];
+            if (!isLive(slot)) continue;
+            if (width < mChannels && !isMono(slot)) {
+                upmix(src, numFrames);
+                width = mChannels;
+            }
+            BusId dst = (pass++ & 1) ? kPong : kPing;
+            // Timed per slot, so the pedal that costs the most can be named
+            auto start = std::chrono::steady_clock::now();
+            runSlot(slot, src, dst, numFrames, width);
+            if (slot->throttled || slot->wet < 1.0f)
+                fadeThrottled(slot, src, dst, numFrames, width);
+            slot->last_nanos = std::chrono::duration_cast<std::chrono::nanoseconds>(
+                    std::chrono::steady_clock::now() - start).count();
+            slot->cost.record(slot->last_nanos, mBlockNanos);
+            src = dst;
+        }
+
+        channels(src, planes);
+        for (int32_t c = width; c < mChannels; c++) planes[c] = planes[0];
+        interleave(planes, output, mChannels, numFrames);
+    }
+
+    void channels(BusId id, float **planes) {
+        for (int32_t c = 0; c < kMaxChannels; c++) planes[c] = mBuses[id][c].get();
+    }
+
+    static bool isMono(const LV2Plugin *plugin) {
+        return !plugin || (plugin->getAudioInputCount() == 1 && plugin->getAudioOutputCount() == 1);
+    }
+
+    // Whether the slot, and everything it is fading out, can stay on one channel
+    static bool isMono(const ChainSlot *slot) {
+        return isMono(slot->plugin) && (!slot->outgoing || isMono(slot->outgoing));
+    }
+
+    bool isLive(const ChainSlot *slot) const {
+        return slot->isActive() || (chain && chain->hasEvents(slot));
+    }
+
+    // Copy the first channel of a bus to all the others
+    void upmix(BusId id, int32_t count) {
+        const float *first = mBuses[id][0].get();
+        for (int32_t c = 1; c < mChannels; c++)
+            std::copy(first, first + count, mBuses[id][c].get());
+    }
+
+    /*
+     * Blend the slot's output with its input while the watchdog fades it out
+     * or back in, over the same time as a crossfade. Once faded out the slot
+     * is no longer active and does not run at all.
+     */
+    void fadeThrottled(ChainSlot *slot, BusId src, BusId dst, int32_t count, int32_t width) {
+        const float target = slot->throttled ? 0.0f : 1.0f;
+        const float step = (target > slot->wet ? 1.0f : -1.0f) / mFadeFrames;
+        float wet = slot->wet;
+        for (int32_t c = 0; c < width; c++) {
+            const float *dry = mBuses[src][c].get();
+            float *out = mBuses[dst][c].get();
+            wet = slot->wet;
+            for (int32_t i = 0; i < count; i++) {
+                wet = step > 0 ? std::min(wet + step, target) : std::max(wet + step, target);
+                out[i] = dry[i] + wet * (out[i] - dry[i]);
+            }
+        }
+        slot->wet = wet;
+    }
+
+    /*
+     * Render the slot's block, split wherever the chain left a control or
+     * bypass change for it within the block (see PluginChain::acquire), so
+     * each lands on the frame it was stamped with. Bypassed stretches pass
+     * through.
+     *
+     * depth: how many crossfades this slot is nested in, 0 for a chain slot
+     */
+    void runSlot(ChainSlot *slot, BusId src, BusId dst, int32_t count, int32_t width,
+                 int32_t depth = 0) {
+        for (int32_t offset = 0; offset < count;) {
+            int32_t end = count;
+            if (chain) {
+                chain->applyEvents(slot, offset);
+                end = (int32_t) std::min<uint32_t>(chain->nextEvent(slot), count);
+            }
+            runPlugin(slot->bypass ? nullptr : slot->plugin, slot->twin, src, dst, offset,
+                      end - offset, width);
+            offset = end;
+        }
+
+        if (slot->outgoing)
+            crossfade(slot, src, dst, count, width, depth);
+    }
+
+    /*
+     * Map the first width channels of the bus onto the plugin's audio ports
+     * in channel order. Inputs beyond width wrap around, outputs beyond it are
+     * discarded, and a narrower plugin has its last output spread over the
+     * remaining channels. A mono plugin with a twin instance runs the first
+     * channel itself and the second on the twin.
+     * An empty slot, or a plugin that could not run, passes through.
+     * Renders count frames from offset into the block.
+     */
+    void runPlugin(LV2Plugin *plugin, LV2Plugin *twin, BusId src, BusId dst, int32_t offset,
+                   int32_t count, int32_t width) {
+        float *in[kMaxChannels], *out[kMaxChannels];
+        channels(src, in);
+        channels(dst, out);
+        for (int32_t c = 0; c < kMaxChannels; c++) {
+            in[c] += offset;
+            out[c] += offset;
+        }
+
+        bool ok = false;
+        if (plugin && twin && width == 2) {
+            ok = plugin->process(&in[0], &out[0], count)
+                 && twin->process(&in[1], &out[1], count);
+        } else if (plugin) {
+            uint32_t numIns = plugin->getAudioInputCount();
+            uint32_t numOuts = plugin->getAudioOutputCount();
+            if (numOuts > 0 && numIns <= kMaxAudioPorts && numOuts <= kMaxAudioPorts) {
+                float *ports[kMaxAudioPorts], *results[kMaxAudioPorts];
+                for (uint32_t k = 0; k < numIns; k++) ports[k] = in[k % width];
+                for (uint32_t k = 0; k < numOuts; k++)
+                    results[k] = k < (uint32_t) width ? out[k] : mDiscard.get() + offset;
+                ok = plugin->process(ports, results, count);
+
+                for (int32_t c = numOuts; ok && c < width; c++)
+                    std::copy(out[numOuts - 1], out[numOuts - 1] + count, out[c]);
+            }
+        }
+
+        if (!ok) {
+            for (int32_t c = 0; c < width; c++)
+                std::copy(in[c], in[c] + count, out[c]);
+        }
+    }
+
+    /*
+     * Run the slot being replaced on the same input and blend it into dst
+     * with equal-power gains (cos/sin), then retire it once the fade is done.
+     * If it was itself still fading out a slot it replaced, that goes on
+     * underneath it, so flipping through pedals never cuts one off.
+     */
+    void crossfade(ChainSlot *slot, BusId src, BusId dst, int32_t count, int32_t width,
+                   int32_t depth) {
+        // Already faded out and still waiting for room in the reaper, or
+        // nested too deep to render
+        if (slot->fade_pos >= static_cast<uint32_t>(mFadeFrames) || depth >= kMaxFadeDepth) {
+            if (chain->retire(slot->outgoing)) slot->outgoing = nullptr;
+            return;
+        }
+
+        const BusId fade = static_cast<BusId>(kFade + depth);
+        runSlot(slot->outgoing, src, fade, count, width, depth + 1);
+
+        // Gains follow a quarter turn; rotate a unit vector by one frame's
+        // step instead of calling sin/cos per frame.
+        const float step = static_cast<float>(M_PI_2) / mFadeFrames;
+        const float cosStep = std::cos(step), sinStep = std::sin(step);
+        const float startOut = std::cos(step * slot->fade_pos);
+        const float startIn = std::sin(step * slot->fade_pos);
+
+        int32_t remaining = static_cast<int32_t>(mFadeFrames - slot->fade_pos);
+        int32_t fading = std::min(count, remaining);
+        for (int32_t c = 0; c < width; c++) {
+            float *mixed = mBuses[dst][c].get();
+            const float *old = mBuses[fade][c].get();
+            float gainOut = startOut, gainIn = startIn;
+            for (int32_t f = 0; f < fading; f++) {
+                mixed[f] = mixed[f] * gainIn + old[f] * gainOut;
+                float nextOut = gainOut * cosStep - gainIn * sinStep;
+                gainIn = gainIn * cosStep + gainOut * sinStep;
+                gainOut = nextOut;
+            }
+        }
+
+        slot->fade_pos += fading;
+        if (slot->fade_pos >= static_cast<uint32_t>(mFadeFrames)) {
+            if (chain->retire(slot->outgoing)) slot->outgoing = nullptr;
+        }
+    }
+
+    // Deinterleaved input, two ping-pong buses, the outgoing side of each
+    // nested crossfade
+    Bus mBuses[kNumBuses];
+    // Sink for plugin outputs wider than the stream
+    std::unique_ptr<float[]> mDiscard;
+    int32_t mBlockFrames = kMinBlockFrames;
+
+    // Interleaved input waiting for a whole block, and the last rendered block
+    std::unique_ptr<float[]> mInputFifo, mOutputFifo;
+
+    // Stands in for the device input while the chain is being measured
+    static constexpr int32_t kProbeChunk = 256;
+    std::unique_ptr<float[]> mProbeInput;
+    int32_t mFifoInputChannels = 1;
+    int32_t mFifoFrames = 0;     // position in both FIFOs
+    int32_t mChannels = 1;
+    int32_t mInputChannels = 1;
+    int32_t mMonoChannel = -1;
+    int32_t mFadeFrames = 1;
+    int64_t mBlockNanos = 1;    // duration of one block, the budget slots are measured against
 };
 #endif //SAMPLES_FULLDUPLEXPASS_H
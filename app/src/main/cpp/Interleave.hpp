@@ -0,0 +1,136 @@
+/*
+ * Interleave.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Conversion between the interleaved frames Oboe delivers and the planar,
+ * one-buffer-per-channel layout LV2 audio ports expect.
+ *
+ * Stereo, the common case, is vectorized with NEON on ARM and SSE on x86.
+ * SSE2 is the x86 baseline of every Android ABI; AVX is not guaranteed, so it
+ * is only used when the compiler is told it may (-mavx). Other channel counts
+ * fall back to a scalar loop.
+ */
+
+#pragma once
+
+#include <cstdint>
+#include <cstring>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#include <arm_neon.h>
+#define INTERLEAVE_NEON 1
+#elif defined(__SSE2__) || defined(__x86_64__) || defined(_M_X64)
+#include <immintrin.h>
+#define INTERLEAVE_SSE 1
+#endif
+
+// in: frames * channels interleaved samples, out[c]: frames samples each
+static inline void deinterleave(const float* in, float* const* out,
+                                int32_t channels, int32_t frames) {
+    if (channels == 1) {
+        memcpy(out[0], in, frames * sizeof(float));
+        return;
+    }
+
+    int32_t i = 0;
+    if (channels == 2) {
+        float* left = out[0];
+        float* right = out[1];
+#if defined(INTERLEAVE_NEON)
+        for (; i + 4 <= frames; i += 4) {
+            float32x4x2_t v = vld2q_f32(in + 2 * i);
+            vst1q_f32(left + i, v.val[0]);
+            vst1q_f32(right + i, v.val[1]);
+        }
+#elif defined(INTERLEAVE_SSE)
+#if defined(__AVX__)
+        for (; i + 8 <= frames; i += 8) {
+            __m256 a = _mm256_loadu_ps(in + 2 * i);      // L0 R0 L1 R1 | L2 R2 L3 R3
+            __m256 b = _mm256_loadu_ps(in + 2 * i + 8);  // L4 R4 L5 R5 | L6 R6 L7 R7
+            __m256 lo = _mm256_permute2f128_ps(a, b, 0x20);
+            __m256 hi = _mm256_permute2f128_ps(a, b, 0x31);
+            _mm256_storeu_ps(left + i, _mm256_shuffle_ps(lo, hi, _MM_SHUFFLE(2, 0, 2, 0)));
+            _mm256_storeu_ps(right + i, _mm256_shuffle_ps(lo, hi, _MM_SHUFFLE(3, 1, 3, 1)));
+        }
+#endif
+        for (; i + 4 <= frames; i += 4) {
+            __m128 a = _mm_loadu_ps(in + 2 * i);      // L0 R0 L1 R1
+            __m128 b = _mm_loadu_ps(in + 2 * i + 4);  // L2 R2 L3 R3
+            _mm_storeu_ps(left + i, _mm_shuffle_ps(a, b, _MM_SHUFFLE(2, 0, 2, 0)));
+            _mm_storeu_ps(right + i, _mm_shuffle_ps(a, b, _MM_SHUFFLE(3, 1, 3, 1)));
+        }
+#endif
+        for (; i < frames; ++i) {
+            left[i] = in[2 * i];
+            right[i] = in[2 * i + 1];
+        }
+        return;
+    }
+
+    for (; i < frames; ++i)
+        for (int32_t c = 0; c < channels; ++c)
+            out[c][i] = in[i * channels + c];
+}
+
+// in[c]: frames samples each, out: frames * channels interleaved samples
+static inline void interleave(const float* const* in, float* out,
+                              int32_t channels, int32_t frames) {
+    if (channels == 1) {
+        memcpy(out, in[0], frames * sizeof(float));
+        return;
+    }
+
+    int32_t i = 0;
+    if (channels == 2) {
+        const float* left = in[0];
+        const float* right = in[1];
+#if defined(INTERLEAVE_NEON)
+        for (; i + 4 <= frames; i += 4) {
+            float32x4x2_t v;
+            v.val[0] = vld1q_f32(left + i);
+            v.val[1] = vld1q_f32(right + i);
+            vst2q_f32(out + 2 * i, v);
+        }
+#elif defined(INTERLEAVE_SSE)
+#if defined(__AVX__)
+        for (; i + 8 <= frames; i += 8) {
+            __m256 l = _mm256_loadu_ps(left + i);
+            __m256 r = _mm256_loadu_ps(right + i);
+            __m256 lo = _mm256_unpacklo_ps(l, r);  // L0 R0 L1 R1 | L4 R4 L5 R5
+            __m256 hi = _mm256_unpackhi_ps(l, r);  // L2 R2 L3 R3 | L6 R6 L7 R7
+            _mm256_storeu_ps(out + 2 * i, _mm256_permute2f128_ps(lo, hi, 0x20));
+            _mm256_storeu_ps(out + 2 * i + 8, _mm256_permute2f128_ps(lo, hi, 0x31));
+        }
+#endif
+        for (; i + 4 <= frames; i += 4) {
+            __m128 l = _mm_loadu_ps(left + i);
+            __m128 r = _mm_loadu_ps(right + i);
+            _mm_storeu_ps(out + 2 * i, _mm_unpacklo_ps(l, r));
+            _mm_storeu_ps(out + 2 * i + 4, _mm_unpackhi_ps(l, r));
+        }
+#endif
+        for (; i < frames; ++i) {
+            out[2 * i] = left[i];
+            out[2 * i + 1] = right[i];
+        }
+        return;
+    }
+
+    for (; i < frames; ++i)
+        for (int32_t c = 0; c < channels; ++c)
+            out[i * channels + c] = in[c][i];
+}
+
+// in: frames * channels interleaved samples, out: frames samples of one channel
+static inline void extractChannel(const float* in, float* out, int32_t channels,
+                                  int32_t channel, int32_t frames) {
+    if (channels == 1) {
+        memcpy(out, in, frames * sizeof(float));
+        return;
+    }
+
+    in += channel;
+    for (int32_t i = 0; i < frames; ++i)
+        out[i] = in[i * channels];
+}
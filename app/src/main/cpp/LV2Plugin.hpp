@@ -20,6 +20,8 @@
 #pragma once
 
 #include "lv2_ringbuffer.h"
+#include "UridMap.hpp"
+#include "WorkerPool.hpp"
 #include <lilv/lilv.h>
 
 #include <lv2/urid/urid.h>
@@ -34,6 +36,8 @@
 #include <lv2/state/state.h>
 #include <lv2/resize-port/resize-port.h>
 #include <lv2/midi/midi.h>
+#include <lv2/port-groups/port-groups.h>
+#include <lv2/port-props/port-props.h>
 
 #include <atomic>
 #include <algorithm>
@@ -41,6 +45,7 @@
 #include <cstring>
 #include <memory>
 #include <string>
+#include <string_view>
 #include <thread>
 #include <unordered_map>
 #include <vector>
@@ -236,19 +241,44 @@ private:
 // AtomState - Shared atom communication for UI↔DSP
 // ============================================================================
 
+// Both directions carry whole atoms, an LV2_Atom header followed by its body.
+// Each ringbuffer has one writer and one reader: UI→DSP is written by the
+// control thread and read by the audio thread, DSP→UI the other way round.
+
 struct AtomState {
-    std::vector<uint8_t> ui_to_dsp;
-    uint32_t ui_to_dsp_type = 0;
-    std::atomic<bool> ui_to_dsp_pending{false};
+    lv2_ringbuffer_t* ui_to_dsp = nullptr;
     lv2_ringbuffer_t* dsp_to_ui = nullptr;
+    uint32_t max_message = 0;   // largest body the port's sequence can take
     
     AtomState(size_t ringbuffer_size = 16384) {
+        ui_to_dsp = lv2_ringbuffer_create(ringbuffer_size);
         dsp_to_ui = lv2_ringbuffer_create(ringbuffer_size);
     }
     
     ~AtomState() {
+        if (ui_to_dsp) lv2_ringbuffer_free(ui_to_dsp);
         if (dsp_to_ui) lv2_ringbuffer_free(dsp_to_ui);
     }
+
+    AtomState(const AtomState&) = delete;
+    AtomState& operator=(const AtomState&) = delete;
+
+    // Every message in ui_to_dsp starts with one of these
+    struct Header {
+        int64_t frame;      // stream frame to deliver at, -1 for the next block
+        LV2_Atom atom;
+    };
+
+    // Queue one message for the plugin. Never blocks; false if it can never
+    // fit the port, or if the ring is full until the next process() call.
+    bool send(uint32_t type, const void* body, uint32_t size, int64_t frame = -1) {
+        if (size > max_message) return false;
+        if (lv2_ringbuffer_write_space(ui_to_dsp) < sizeof(Header) + size) return false;
+        Header header { frame, { size, type } };
+        lv2_ringbuffer_write(ui_to_dsp, (const char*)&header, sizeof(Header));
+        lv2_ringbuffer_write(ui_to_dsp, (const char*)body, size);
+        return true;
+    }
 };
 
 // ============================================================================
@@ -263,41 +293,34 @@ public:
         
         const LilvNode* sym = lilv_port_get_symbol(plugin, port);
         symbol_ = sym ? lilv_node_as_string(sym) : "";
-        
-        // Create shared atom state
-        atom_state_ = new AtomState();
-    }
-    
-    ~AtomPortControl() override {
-        delete atom_state_;
     }
     
+    // Sends the bytes as one message body of the type set by setMessageType()
     void setValue(const std::variant<float, bool, std::vector<uint8_t>>& val) override {
-        try {
-            auto data = std::get<std::vector<uint8_t>>(val);
-            // TODO: how to get type? For now, store data and wait for caller to set type
-            atom_state_->ui_to_dsp = data;
-            atom_state_->ui_to_dsp_pending.store(true, std::memory_order_release);
-        } catch (const std::bad_variant_access&) {
-            // Type mismatch, ignore
-        }
+        const auto* data = std::get_if<std::vector<uint8_t>>(&val);
+        if (data && atom_state_)
+            atom_state_->send(message_type_, data->data(), data->size());
     }
     
+    // Messages are not kept once sent
     std::variant<float, bool, std::vector<uint8_t>> getValue() const override {
-        return atom_state_->ui_to_dsp;
+        return std::vector<uint8_t>();
     }
     
     Type getType() const override { return Type::AtomPort; }
     const char* getSymbol() const override { return symbol_.c_str(); }
     const LilvPort* getPort() const override { return port_; }
-    void reset() override { atom_state_->ui_to_dsp.clear(); }
+    void reset() override {}
     
+    // The port's state, owned by the plugin
     AtomState* getAtomState() { return atom_state_; }
-    void setMessageType(uint32_t type_urid) { atom_state_->ui_to_dsp_type = type_urid; }
+    void setAtomState(AtomState* state) { atom_state_ = state; }
+    void setMessageType(uint32_t type_urid) { message_type_ = type_urid; }
 
 private:
     const LilvPort* port_;
-    AtomState* atom_state_;
+    AtomState* atom_state_ = nullptr;
+    uint32_t message_type_ = 0;
     std::string symbol_;
 };
 
@@ -333,6 +356,33 @@ public:
         closePlugin();
     }
 
+    // Whether process() must always be called with the fixed block length
+    bool hasFixedBlockLength() const { return fixed_block_length_; }
+
+    // Promise the plugin that every process() call is exactly frames long,
+    // a power of two or not. Call before initialize().
+    void setFixedBlockLength(uint32_t frames) {
+        max_block_length_ = frames;
+        fixed_block_length_ = true;
+    }
+
+    // Whether the plugin will only run with a fixed or power-of-two block
+    // length. Others should not be promised one: without it, process() can
+    // split a block so ramping controls move in small steps.
+    bool requiresFixedBlockLength() const {
+        if (!plugin_) return false;
+        bool fixed = false;
+        LilvNodes* requests = lilv_plugin_get_required_features(plugin_);
+        LILV_FOREACH(nodes, f, requests) {
+            const char* uri = lilv_node_as_uri(lilv_nodes_get(requests, f));
+            if (!strcmp(uri, LV2_BUF_SIZE__fixedBlockLength)
+                || !strcmp(uri, LV2_BUF_SIZE__powerOf2BlockLength))
+                fixed = true;
+        }
+        lilv_nodes_free(requests);
+        return fixed;
+    }
+
     // Initialize plugin: discover ports, create controls, instantiate instance
     bool initialize() {
         if (!world_ || !plugin_) return false;
@@ -355,23 +405,27 @@ public:
     }
 
     // Lifecycle
+    // activate()/deactivate() must alternate, initialize() already activates
     void start() {
         shutdown_.store(false, std::memory_order_release);
-        if (instance_) lilv_instance_activate(instance_);
+        if (instance_ && !active_) lilv_instance_activate(instance_);
+        active_ = instance_ != nullptr;
     }
 
     void stop() {
         shutdown_.store(true, std::memory_order_release);
-        if (instance_) lilv_instance_deactivate(instance_);
+        if (instance_ && active_) lilv_instance_deactivate(instance_);
+        active_ = false;
     }
 
     void closePlugin() {
         stop_worker();
 
         if (instance_) {
-            lilv_instance_deactivate(instance_);
+            if (active_) lilv_instance_deactivate(instance_);
             lilv_instance_free(instance_);
             instance_ = nullptr;
+            active_ = false;
         }
 
         // Free port buffers and controls
@@ -380,6 +434,13 @@ public:
             delete p.atom_state;
         }
         ports_.clear();
+        port_by_symbol_.clear();
+        symbols_.clear();
+        control_of_port_.clear();
+        audio_inputs_.clear();
+        audio_outputs_.clear();
+        atom_inputs_.clear();
+        atom_outputs_.clear();
         
         for (auto* control : controls_) {
             delete control;
@@ -392,9 +453,11 @@ public:
         if (atom_class_) lilv_node_free(atom_class_);
         if (input_class_) lilv_node_free(input_class_);
         if (rsz_minimumSize_) lilv_node_free(rsz_minimumSize_);
+        audio_class_ = control_class_ = atom_class_ = input_class_ = rsz_minimumSize_ = nullptr;
     }
 
-    // RT-safe audio processing with atom message handling
+    // RT-safe audio processing with atom message handling, mono convenience:
+    // every audio input reads inputBuffer, every audio output writes outputBuffer
     bool process(float* inputBuffer, float* outputBuffer, int numFrames) {
         if (shutdown_.load(std::memory_order_acquire) || !instance_)
             return false;
@@ -403,82 +466,88 @@ public:
             return false;
 
         // --- Step A: Connect audio port buffers ---
-        uint32_t input_index = 0, output_index = 0;
-        for (auto& p : ports_) {
-            if (!p.is_audio) continue;
-            
-            float* target = inputBuffer;
-            if (!p.is_input) target = outputBuffer;
-            lilv_instance_connect_port(instance_, p.index, target);
-        }
+        for (auto& c : audio_inputs_) connect_audio(c, inputBuffer);
+        for (auto& c : audio_outputs_) connect_audio(c, outputBuffer);
 
-        // --- Step B: Process incoming UI→DSP atom messages ---
-        for (auto& p : ports_) {
-            if (!p.is_atom || !p.is_input) continue;
-            
-            // Check for pending UI message
-            if (p.atom_state->ui_to_dsp_pending.exchange(false, std::memory_order_acquire)) {
-                // Wrap UI data in LV2_Atom_Event and append to sequence
-                p.atom->atom.type = urids_.atom_Sequence;
-                p.atom->atom.size = 0;
-                
-                const uint32_t body_size = p.atom_state->ui_to_dsp.size();
-                uint8_t evbuf[sizeof(LV2_Atom_Event) + body_size];
-                LV2_Atom_Event* ev = (LV2_Atom_Event*)evbuf;
-                
-                ev->time.frames = 0;
-                ev->body.type = p.atom_state->ui_to_dsp_type;
-                ev->body.size = body_size;
-                memcpy((uint8_t*)LV2_ATOM_BODY(&ev->body),
-                       p.atom_state->ui_to_dsp.data(), body_size);
-                
-                lv2_atom_sequence_append_event(p.atom, p.atom_buf_size, ev);
-            }
-        }
+        run_smoothed(numFrames);
+        return true;
+    }
 
-        // --- Step C: Run plugin ---
-        lilv_instance_run(instance_, numFrames);
+    // RT-safe planar processing: inputs[k] feeds the k-th audio input and
+    // outputs[k] receives the k-th audio output, in channel order (port group
+    // designation first, port index otherwise). Arrays must hold
+    // getAudioInputCount() / getAudioOutputCount() non-null buffers.
+    bool process(const float* const* inputs, float* const* outputs, int numFrames) {
+        if (shutdown_.load(std::memory_order_acquire) || !instance_)
+            return false;
 
-        // --- Step D: Deliver worker responses ---
-        if (host_worker_.iface) deliver_worker_responses();
+        if (numFrames <= 0)
+            return false;
 
-        // --- Step E: Read outgoing DSP→UI atom messages ---
-        for (auto& p : ports_) {
-            // Reset input atom port for next cycle
-            if (p.is_atom && p.is_input) {
-                p.atom->atom.size = 0;
-            }
+        // --- Step A: Connect audio port buffers ---
+        for (size_t k = 0; k < audio_inputs_.size(); ++k)
+            connect_audio(audio_inputs_[k], const_cast<float*>(inputs[k]));
+        for (size_t k = 0; k < audio_outputs_.size(); ++k)
+            connect_audio(audio_outputs_[k], outputs[k]);
 
-            // Copy output atoms to ringbuffer
-            if (p.is_atom && !p.is_input) {
-                LV2_Atom_Sequence* seq = p.atom;
-                LV2_ATOM_SEQUENCE_FOREACH(seq, ev) {
-                    if (ev->body.size == 0) break;
-                    if (seq->atom.type == 0) break;
-                    
-                    const uint32_t total = sizeof(LV2_Atom) + ev->body.size;
-                    if (lv2_ringbuffer_write_space(p.atom_state->dsp_to_ui) >= total) {
-                        lv2_ringbuffer_write(p.atom_state->dsp_to_ui,
-                                           (const char*)&ev->body, total);
-                    }
-                }
-                
-                // Reset output buffer for next process cycle
-                p.atom->atom.type = 0;
-                p.atom->atom.size = required_atom_size_;
-            }
+        run_smoothed(numFrames);
+        return true;
+    }
+
+    // RT-safe: move a control input towards value. Continuous float controls
+    // ramp linearly over the smoothing time, everything else steps at once.
+    void setControlTarget(uint32_t index, float value) {
+        if (index >= ports_.size()) return;
+        Port& p = ports_[index];
+        if (!p.smooth || ramp_frames_ == 0 || p.control == value) {
+            p.control = value;
+            for (auto& r : ramps_) if (r.index == index) r.remaining = 0;
+            return;
         }
 
-        return true;
+        Ramp* ramp = nullptr;
+        for (auto& r : ramps_) if (r.index == index) ramp = &r;
+        if (!ramp) {
+            // Reserved for every smoothed port, never reallocates
+            ramps_.push_back({ index, 0.0f, 0.0f, 0 });
+            ramp = &ramps_.back();
+        }
+        ramp->target = value;
+        ramp->step = (value - p.control) / ramp_frames_;
+        ramp->remaining = ramp_frames_;
+    }
+
+    // Value a control input is at, or ramping towards. Not while the audio
+    // thread may be running the plugin.
+    float getControlTarget(uint32_t index) const {
+        if (index >= ports_.size()) return 0.0f;
+        for (auto& r : ramps_) if (r.index == index && r.remaining > 0) return r.target;
+        return ports_[index].control;
+    }
+
+    // Ramp length for control changes, 0 to disable. Not for the audio thread.
+    void setSmoothingTime(float millis) {
+        ramp_frames_ = millis > 0 ? (uint32_t) (sample_rate_ * millis / 1000.0) : 0;
     }
 
+    const char* getUri() const {
+        return plugin_ ? lilv_node_as_uri(lilv_plugin_get_uri(plugin_)) : nullptr;
+    }
+
+    uint32_t getAudioInputCount() const { return audio_inputs_.size(); }
+    uint32_t getAudioOutputCount() const { return audio_outputs_.size(); }
+
     // Control access
     PluginControl* getControl(const char* symbol) {
-        for (auto* control : controls_) {
-            if (std::string(control->getSymbol()) == symbol)
-                return control;
-        }
-        return nullptr;
+        int32_t index = findPort(symbol);
+        return index < 0 ? nullptr : control_of_port_[index];
+    }
+
+    // Port index for a symbol, or -1. Hash lookup, does not allocate.
+    int32_t findPort(const char* symbol) const {
+        if (!symbol) return -1;
+        auto it = port_by_symbol_.find(std::string_view(symbol));
+        return it == port_by_symbol_.end() ? -1 : (int32_t) it->second;
     }
 
     uint32_t getPortCount() const { return ports_.size(); }
@@ -487,16 +556,40 @@ public:
         return ports_[index].lilv_port;
     }
 
-    // Get ringbuffer for reading DSP→UI atoms
-    lv2_ringbuffer_t* getAtomOutputRingbuffer(const char* portSymbol) {
+    // Queue an atom (e.g. a patch:Set object body) for an atom input port.
+    // frame is the stream frame to deliver it at, see setStreamFrame(), or -1
+    // for the start of the next block.
+    // Control thread only, one writer per port; does not allocate.
+    bool sendAtomMessage(const char* portSymbol, uint32_t type, const void* body, uint32_t size,
+                         int64_t frame = -1) {
+        int32_t index = findPort(portSymbol);
+        if (index < 0) return false;
+        Port& p = ports_[index];
+        if (!p.is_atom || !p.is_input) return false;
+        return p.atom_state->send(type, body, size, frame);
+    }
+
+    // Queue a raw MIDI message for the first MIDI input, same rules as above
+    bool sendMidi(const uint8_t* data, uint32_t size, int64_t frame = -1) {
         for (auto& p : ports_) {
-            if (!p.is_atom || p.is_input) continue;
-            const LilvNode* sym = lilv_port_get_symbol(plugin_, p.lilv_port);
-            if (sym && std::string(lilv_node_as_string(sym)) == portSymbol) {
-                return p.atom_state->dsp_to_ui;
-            }
+            if (p.is_atom && p.is_input && p.is_midi)
+                return p.atom_state->send(urids_.midi_Event, data, size, frame);
         }
-        return nullptr;
+        return false;
+    }
+
+    // RT-safe: stream frame the next process() call starts at. Messages
+    // stamped with a frame are held until the block containing it and placed
+    // at their exact offset. Sub-blocks advance it by themselves.
+    void setStreamFrame(int64_t frame) { stream_frame_ = frame; }
+
+    // Get ringbuffer for reading DSP→UI atoms
+    lv2_ringbuffer_t* getAtomOutputRingbuffer(const char* portSymbol) {
+        int32_t index = findPort(portSymbol);
+        if (index < 0) return nullptr;
+        const Port& p = ports_[index];
+        if (!p.is_atom || p.is_input) return nullptr;
+        return p.atom_state->dsp_to_ui;
     }
 
     // Helper to read atoms from ringbuffer
@@ -551,6 +644,150 @@ public:
     }
 
 private:
+    // ========== Process Plan ==========
+    // Hot per-block data, built once from ports_ (which stays the cold,
+    // descriptive side) so the RT loop touches a few cache lines at most.
+    struct AudioConnection {
+        uint32_t index;
+        float* buffer;              // last buffer connected, nullptr if none
+    };
+
+    struct AtomConnection {
+        uint32_t index;
+        uint32_t size;
+        LV2_Atom_Sequence* seq;
+        AtomState* state;
+    };
+
+    // Everything after the audio ports are connected
+    void run(int numFrames) {
+        // --- Step B: Process incoming UI→DSP atom messages ---
+        // Each queued atom is read straight into a new event at the end of
+        // the input sequence; whatever does not fit, or is stamped for a
+        // later block, waits. Events stay in time order even when an
+        // unstamped message follows a stamped one.
+        const int64_t block_end = stream_frame_ + numFrames;
+        for (auto& p : atom_inputs_) {
+            p.seq->atom.type = urids_.atom_Sequence;
+            p.seq->atom.size = sizeof(LV2_Atom_Sequence_Body);
+
+            const uint32_t capacity = p.size - sizeof(LV2_Atom);
+            lv2_ringbuffer_t* rb = p.state->ui_to_dsp;
+            AtomState::Header header;
+            int64_t last = 0;
+            while (lv2_ringbuffer_read_space(rb) >= sizeof(header)) {
+                lv2_ringbuffer_peek(rb, (char*)&header, sizeof(header));
+                const uint32_t total = sizeof(header) + header.atom.size;
+                const uint32_t event_size = lv2_atom_pad_size(sizeof(LV2_Atom_Event) + header.atom.size);
+                if (lv2_ringbuffer_read_space(rb) < total) break;       // body still being written
+                if (capacity - p.seq->atom.size < event_size) break;   // sequence full
+                if (header.frame >= block_end) break;                  // a later block
+
+                last = std::max(last, header.frame - stream_frame_);
+                lv2_ringbuffer_read(rb, (char*)&header.frame, sizeof(header.frame));
+
+                LV2_Atom_Event* ev = lv2_atom_sequence_end(&p.seq->body, p.seq->atom.size);
+                ev->time.frames = last;
+                lv2_ringbuffer_read(rb, (char*)&ev->body, total - sizeof(header.frame));
+                p.seq->atom.size += event_size;
+            }
+        }
+
+        // --- Step C: Run plugin ---
+        lilv_instance_run(instance_, numFrames);
+        stream_frame_ += numFrames;
+
+        // --- Step D: Deliver worker responses ---
+        if (host_worker_.iface) deliver_worker_responses();
+
+        // --- Step E: Read outgoing DSP→UI atom messages ---
+        // Reset input atom ports for next cycle
+        for (auto& p : atom_inputs_) {
+            p.seq->atom.size = sizeof(LV2_Atom_Sequence_Body);
+        }
+
+        // Copy output atoms to ringbuffer
+        for (auto& p : atom_outputs_) {
+            LV2_Atom_Sequence* seq = p.seq;
+            LV2_ATOM_SEQUENCE_FOREACH(seq, ev) {
+                if (ev->body.size == 0) break;
+                if (seq->atom.type == 0) break;
+                
+                const uint32_t total = sizeof(LV2_Atom) + ev->body.size;
+                if (lv2_ringbuffer_write_space(p.state->dsp_to_ui) >= total) {
+                    lv2_ringbuffer_write(p.state->dsp_to_ui,
+                                       (const char*)&ev->body, total);
+                }
+            }
+            
+            // Reset output buffer for next process cycle
+            p.seq->atom.type = 0;
+            p.seq->atom.size = required_atom_size_;
+        }
+    }
+
+    // Run the block, in sub-blocks while any control is ramping so each gets
+    // a fresh value. With a fixed block length the block cannot be split and
+    // ramps advance once per block instead. No ramps, no overhead.
+    void run_smoothed(int numFrames) {
+        if (ramps_.empty()) {
+            run(numFrames);
+            return;
+        }
+
+        if (fixed_block_length_ || numFrames <= (int) kSmoothingSubBlock) {
+            advance_ramps(numFrames);
+            run(numFrames);
+            return;
+        }
+
+        // Sub-blocks shift the audio buffers; remember where they start
+        float* inputs[kMaxSplitPorts];
+        float* outputs[kMaxSplitPorts];
+        if (audio_inputs_.size() > kMaxSplitPorts || audio_outputs_.size() > kMaxSplitPorts) {
+            advance_ramps(numFrames);
+            run(numFrames);
+            return;
+        }
+        for (size_t k = 0; k < audio_inputs_.size(); ++k) inputs[k] = audio_inputs_[k].buffer;
+        for (size_t k = 0; k < audio_outputs_.size(); ++k) outputs[k] = audio_outputs_[k].buffer;
+
+        for (int offset = 0; offset < numFrames; offset += kSmoothingSubBlock) {
+            int count = std::min<int>(kSmoothingSubBlock, numFrames - offset);
+            if (offset > 0) {
+                for (size_t k = 0; k < audio_inputs_.size(); ++k)
+                    connect_audio(audio_inputs_[k], inputs[k] + offset);
+                for (size_t k = 0; k < audio_outputs_.size(); ++k)
+                    connect_audio(audio_outputs_[k], outputs[k] + offset);
+            }
+            advance_ramps(count);
+            run(count);
+        }
+    }
+
+    void advance_ramps(uint32_t frames) {
+        for (size_t i = 0; i < ramps_.size();) {
+            Ramp& r = ramps_[i];
+            float& control = ports_[r.index].control;
+            if (r.remaining <= frames) {
+                control = r.target;
+                r = ramps_.back();
+                ramps_.pop_back();
+                continue;
+            }
+            control += r.step * frames;
+            r.remaining -= frames;
+            ++i;
+        }
+    }
+
+    // Only tell the plugin about a buffer it does not already have
+    void connect_audio(AudioConnection& c, float* buffer) {
+        if (c.buffer == buffer) return;
+        lilv_instance_connect_port(instance_, c.index, buffer);
+        c.buffer = buffer;
+    }
+
     // ========== URID Mapping ==========
     struct {
         LV2_URID atom_eventTransfer;
@@ -561,6 +798,8 @@ private:
         LV2_URID atom_Double;
         LV2_URID midi_Event;
         LV2_URID buf_maxBlock;
+        LV2_URID buf_minBlock;
+        LV2_URID buf_nominalBlock;
         LV2_URID atom_Path;
         LV2_URID patch_Get;
         LV2_URID patch_Set;
@@ -582,6 +821,8 @@ private:
         urids_.atom_Double = map_uri(LV2_ATOM__Double);
         urids_.midi_Event = map_uri(LV2_MIDI__MidiEvent);
         urids_.buf_maxBlock = map_uri(LV2_BUF_SIZE__maxBlockLength);
+        urids_.buf_minBlock = map_uri(LV2_BUF_SIZE__minBlockLength);
+        urids_.buf_nominalBlock = map_uri(LV2_BUF_SIZE__nominalBlockLength);
         urids_.atom_Path = map_uri(LV2_ATOM__Path);
         urids_.patch_Get = map_uri(LV2_PATCH__Get);
         urids_.patch_Set = map_uri(LV2_PATCH__Set);
@@ -590,31 +831,11 @@ private:
         urids_.param_sampleRate = map_uri(LV2_PARAMETERS__sampleRate);
     }
 
-    static LV2_URID map_uri(LV2_URID_Map_Handle h, const char* uri) {
-        auto* self = static_cast<LV2Plugin*>(h);
-        auto it = self->urid_map_.find(uri);
-        if (it != self->urid_map_.end()) return it->second;
-        
-        LV2_URID id = self->urid_map_.size() + 1;
-        self->urid_map_[uri] = id;
-        self->urid_unmap_[id] = uri;
-        return id;
-    }
-
-    static const char* unmap_uri(LV2_URID_Unmap_Handle h, LV2_URID urid) {
-        auto* self = static_cast<LV2Plugin*>(h);
-        auto it = self->urid_unmap_.find(urid);
-        if (it == self->urid_unmap_.end()) return nullptr;
-        return it->second.c_str();
-    }
-
+    // URIDs come from the process-wide registry, see UridMap.hpp
     LV2_URID map_uri(const char* uri) {
-        return map_uri((LV2_URID_Map_Handle)this, uri);
+        return UridMap::shared().map(uri);
     }
 
-    std::unordered_map<std::string, LV2_URID> urid_map_;
-    std::unordered_map<LV2_URID, std::string> urid_unmap_;
-
     LV2_URID_Map um_;
     LV2_URID_Unmap unm_;
 
@@ -626,6 +847,8 @@ private:
         LV2_Feature make_path_feature;
         LV2_Feature free_path_feature;
         LV2_Feature bbl_feature;
+        LV2_Feature fbl_feature;
+        LV2_Feature p2bl_feature;
     } features_;
 
     static char* make_path_func(LV2_State_Make_Path_Handle, const char* path) {
@@ -641,10 +864,8 @@ private:
     }
 
     void init_features() {
-        um_.handle = this;
-        um_.map = map_uri;
-        unm_.handle = this;
-        unm_.unmap = unmap_uri;
+        um_ = *UridMap::shared().mapFeature();
+        unm_ = *UridMap::shared().unmapFeature();
 
         map_path_.handle = nullptr;
         map_path_.abstract_path = map_path_func;
@@ -656,6 +877,12 @@ private:
         features_.bbl_feature.URI = LV2_BUF_SIZE__boundedBlockLength;
         features_.bbl_feature.data = nullptr;
 
+        features_.fbl_feature.URI = LV2_BUF_SIZE__fixedBlockLength;
+        features_.fbl_feature.data = nullptr;
+
+        features_.p2bl_feature.URI = LV2_BUF_SIZE__powerOf2BlockLength;
+        features_.p2bl_feature.data = nullptr;
+
         features_.um_f.URI = LV2_URID__map;
         features_.um_f.data = &um_;
 
@@ -684,15 +911,12 @@ private:
     static void set_port_value(const char* port_symbol, void* user_data,
                                const void* value, uint32_t size, uint32_t type) {
         auto* self = static_cast<LV2Plugin*>(user_data);
-        for (auto& p : self->ports_) {
-            const LilvNode* sym = lilv_port_get_symbol(self->plugin_, p.lilv_port);
-            if (sym && std::string(lilv_node_as_string(sym)) == port_symbol) {
-                if (p.is_control && size == sizeof(float)) {
-                    p.control = *(const float*)value;
-                    lilv_instance_connect_port(self->instance_, p.index, &p.control);
-                }
-                break;
-            }
+        int32_t index = self->findPort(port_symbol);
+        if (index < 0) return;
+        Port& p = self->ports_[index];
+        if (p.is_control && size == sizeof(float)) {
+            p.control = *(const float*)value;
+            lilv_instance_connect_port(self->instance_, p.index, &p.control);
         }
     }
 
@@ -740,8 +964,17 @@ private:
     bool init_ports() {
         uint32_t n = lilv_plugin_get_num_ports(plugin_);
         ports_.reserve(n);
+        symbols_.reserve(n);
+        control_of_port_.assign(n, nullptr);
 
         LilvNode* midi_event = lilv_new_uri(world_, LV2_MIDI__MidiEvent);
+        LilvNode* designation = lilv_new_uri(world_, LV2_CORE__designation);
+        LilvNode* pg_left = lilv_new_uri(world_, LV2_PORT_GROUPS__left);
+        LilvNode* pg_right = lilv_new_uri(world_, LV2_PORT_GROUPS__right);
+        LilvNode* toggled = lilv_new_uri(world_, LV2_CORE__toggled);
+        LilvNode* integer = lilv_new_uri(world_, LV2_CORE__integer);
+        LilvNode* enumeration = lilv_new_uri(world_, LV2_CORE__enumeration);
+        LilvNode* trigger = lilv_new_uri(world_, LV2_PORT_PROPS__trigger);
 
         for (uint32_t i = 0; i < n; ++i) {
             const LilvPort* lp = lilv_plugin_get_port_by_index(plugin_, i);
@@ -758,6 +991,14 @@ private:
             p.atom = nullptr;
             p.atom_state = nullptr;
 
+            // Port group channel, if the plugin says which side it is
+            if (p.is_audio) {
+                LilvNode* d = lilv_port_get(plugin_, lp, designation);
+                if (d && lilv_node_equals(d, pg_left)) p.channel = 0;
+                if (d && lilv_node_equals(d, pg_right)) p.channel = 1;
+                if (d) lilv_node_free(d);
+            }
+
             // Allocate and initialize atom ports
             if (p.is_atom) {
                 p.atom_buf_size = required_atom_size_;
@@ -774,6 +1015,8 @@ private:
                 }
 
                 p.atom_state = new AtomState();
+                p.atom_state->max_message = p.atom_buf_size - sizeof(LV2_Atom_Sequence)
+                                            - sizeof(LV2_Atom_Event);
             }
 
             // Extract default values for control inputs
@@ -787,6 +1030,12 @@ private:
                     lilv_node_free(pdflt);
                 }
                 p.control = p.defvalue;
+
+                // Stepped values must not pass through the ones in between
+                p.smooth = !lilv_port_has_property(plugin_, lp, toggled)
+                           && !lilv_port_has_property(plugin_, lp, integer)
+                           && !lilv_port_has_property(plugin_, lp, enumeration)
+                           && !lilv_port_has_property(plugin_, lp, trigger);
             }
 
             ports_.push_back(p);
@@ -795,19 +1044,90 @@ private:
             if (p.is_control || p.is_atom) {
                 PluginControl* control = PluginControl::create(world_, plugin_, lp,
                                                                 audio_class_, control_class_, atom_class_);
+                if (control && control->getType() == PluginControl::Type::AtomPort)
+                    static_cast<AtomPortControl*>(control)->setAtomState(p.atom_state);
                 if (control) controls_.push_back(control);
+                control_of_port_[i] = control;
             }
         }
 
         lilv_node_free(midi_event);
+        lilv_node_free(designation);
+        lilv_node_free(pg_left);
+        lilv_node_free(pg_right);
+        lilv_node_free(toggled);
+        lilv_node_free(integer);
+        lilv_node_free(enumeration);
+        lilv_node_free(trigger);
+        ramps_.clear();
+        ramps_.reserve(n);
+
+        // symbols_ is complete, the views into it stay valid
+        for (uint32_t i = 0; i < n; ++i) {
+            const LilvNode* sym = lilv_port_get_symbol(plugin_, ports_[i].lilv_port);
+            symbols_.push_back(sym ? lilv_node_as_string(sym) : "");
+        }
+        for (uint32_t i = 0; i < n; ++i)
+            port_by_symbol_.emplace(symbols_[i], i);
+
+        build_plan();
         return true;
     }
 
+    // Gather what process() needs into small arrays, so the RT path never
+    // walks ports_ and touches only the ports it has work for
+    void build_plan() {
+        audio_inputs_.clear();
+        audio_outputs_.clear();
+        for (uint32_t index : order_audio_ports(true))
+            audio_inputs_.push_back({ index, nullptr });
+        for (uint32_t index : order_audio_ports(false))
+            audio_outputs_.push_back({ index, nullptr });
+
+        atom_inputs_.clear();
+        atom_outputs_.clear();
+        for (auto& p : ports_) {
+            if (!p.is_atom) continue;
+            AtomConnection c { p.index, p.atom_buf_size, p.atom, p.atom_state };
+            if (p.is_input) atom_inputs_.push_back(c);
+            else atom_outputs_.push_back(c);
+        }
+    }
+
+    // Audio port indices of one direction in channel order: designated ports
+    // take their channel, the rest fill the remaining positions by index
+    std::vector<uint32_t> order_audio_ports(bool input) const {
+        std::vector<const Port*> found;
+        for (auto& p : ports_)
+            if (p.is_audio && p.is_input == input) found.push_back(&p);
+
+        std::vector<uint32_t> order(found.size());
+        std::vector<bool> taken(found.size(), false), placed(found.size(), false);
+        for (size_t i = 0; i < found.size(); ++i) {
+            int32_t ch = found[i]->channel;
+            if (ch >= 0 && ch < (int32_t) found.size() && !taken[ch]) {
+                order[ch] = found[i]->index;
+                taken[ch] = placed[i] = true;
+            }
+        }
+
+        size_t next = 0;
+        for (size_t i = 0; i < found.size(); ++i) {
+            if (placed[i]) continue;
+            while (taken[next]) ++next;
+            order[next] = found[i]->index;
+            taken[next] = true;
+        }
+        return order;
+    }
+
     struct Port {
         uint32_t index = 0;
         const LilvPort* lilv_port = nullptr;
         bool is_audio = false, is_input = false, is_control = false;
         bool is_atom = false, is_midi = false;
+        bool smooth = false;    // continuous float control input, may ramp
+        int32_t channel = -1;   // pg:left = 0, pg:right = 1, -1 undesignated
 
         float control = 0.0f, defvalue = 0.0f;
         LV2_Atom_Sequence* atom = nullptr;
@@ -817,6 +1137,9 @@ private:
 
     // ========== Plugin Instantiation ==========
     bool init_instance() {
+        // With a fixed block length every run() gets exactly max_block_length_
+        // frames, so it is the minimum and nominal length as well
+        uint32_t min_block_length = fixed_block_length_ ? max_block_length_ : 0;
         LV2_Options_Option options[] = {
             {
                 LV2_OPTIONS_INSTANCE,
@@ -826,21 +1149,48 @@ private:
                 urids_.atom_Int,
                 &max_block_length_
             },
+            {
+                LV2_OPTIONS_INSTANCE,
+                0,
+                urids_.buf_minBlock,
+                sizeof(uint32_t),
+                urids_.atom_Int,
+                &min_block_length
+            },
+            {
+                LV2_OPTIONS_INSTANCE,
+                0,
+                urids_.buf_nominalBlock,
+                sizeof(uint32_t),
+                urids_.atom_Int,
+                &max_block_length_
+            },
             { LV2_OPTIONS_INSTANCE, 0, 0, 0, 0, nullptr }
         };
 
         LV2_Feature opt_f { LV2_OPTIONS__options, options };
 
-        LV2_Feature* feats[] = { &features_.um_f, &features_.unm_f, &opt_f,
+        LV2_Feature* feats[11] = { &features_.um_f, &features_.unm_f, &opt_f,
                     &features_.bbl_feature, &features_.map_path_feature,
                     &features_.make_path_feature, &features_.free_path_feature,
                     &host_worker_.feature, nullptr };
+        if (fixed_block_length_) {
+            size_t n = 8;
+            feats[n++] = &features_.fbl_feature;
+            if ((max_block_length_ & (max_block_length_ - 1)) == 0)
+                feats[n++] = &features_.p2bl_feature;
+            feats[n] = nullptr;
+        }
 
         if (!checkFeatures(feats)) return false;
 
         instance_ = lilv_plugin_instantiate(plugin_, sample_rate_, feats);
         if (!instance_) return false;
 
+        // A fresh instance has no audio buffers yet
+        for (auto& c : audio_inputs_) c.buffer = nullptr;
+        for (auto& c : audio_outputs_) c.buffer = nullptr;
+
         // Setup worker if plugin provides interface
         const LV2_Worker_Interface* iface = (const LV2_Worker_Interface*)
             lilv_instance_get_extension_data(instance_, LV2_WORKER__interface);
@@ -851,8 +1201,8 @@ private:
             host_worker_.requests = lv2_ringbuffer_create(8192);
             host_worker_.responses = lv2_ringbuffer_create(8192);
             host_worker_.response_buffer.resize(8192);
-            host_worker_.running.store(true);
-            host_worker_.worker_thread = std::thread(worker_thread_func, &host_worker_);
+            host_worker_.running = true;
+            WorkerPool::shared().add(&host_worker_);
         }
 
         // Connect control and atom ports
@@ -867,11 +1217,13 @@ private:
         }
 
         lilv_instance_activate(instance_);
+        active_ = true;
         return true;
     }
 
-    // ========== Worker Thread ==========
-    struct LV2HostWorker {
+    // ========== Worker ==========
+    // Requests are run by the process-wide WorkerPool, see WorkerPool.hpp
+    struct LV2HostWorker : public WorkerPool::Client {
         lv2_ringbuffer_t* requests = nullptr;
         lv2_ringbuffer_t* responses = nullptr;
 
@@ -880,11 +1232,24 @@ private:
         const LV2_Worker_Interface* iface = nullptr;
         LV2_Handle dsp_handle;
 
-        std::atomic<bool> running{false};
-        std::atomic<bool> work_pending{false};
-        std::thread worker_thread;
+        bool running = false;
 
         std::vector<uint8_t> response_buffer;
+
+        bool hasWork() const override {
+            if (lv2_ringbuffer_read_space(requests) < sizeof(uint32_t)) return false;
+            uint32_t size;
+            lv2_ringbuffer_peek(requests, (char*)&size, sizeof(uint32_t));
+            return lv2_ringbuffer_read_space(requests) >= sizeof(uint32_t) + size;
+        }
+
+        void runOne(std::vector<uint8_t>& scratch) override {
+            uint32_t size;
+            lv2_ringbuffer_read(requests, (char*)&size, sizeof(uint32_t));
+            if (scratch.size() < size) scratch.resize(size);
+            lv2_ringbuffer_read(requests, (char*)scratch.data(), size);
+            iface->work(dsp_handle, host_respond, this, size, scratch.data());
+        }
     };
 
     static LV2_Worker_Status host_schedule_work(
@@ -897,32 +1262,11 @@ private:
 
         lv2_ringbuffer_write(w->requests, (const char*)&size, sizeof(uint32_t));
         lv2_ringbuffer_write(w->requests, (const char*)data, size);
-        w->work_pending.store(true, std::memory_order_release);
+        WorkerPool::shared().notify();
 
         return LV2_WORKER_SUCCESS;
     }
 
-    static void worker_thread_func(LV2HostWorker* w) {
-        while (w->running.load()) {
-            if (lv2_ringbuffer_read_space(w->requests) < sizeof(uint32_t)) {
-                std::this_thread::sleep_for(std::chrono::milliseconds(1));
-                continue;
-            }
-
-            uint32_t size;
-            lv2_ringbuffer_peek(w->requests, (char*)&size, sizeof(uint32_t));
-
-            if (lv2_ringbuffer_read_space(w->requests) < sizeof(uint32_t) + size) {
-                continue;
-            }
-
-            lv2_ringbuffer_read(w->requests, (char*)&size, sizeof(uint32_t));
-            std::vector<uint8_t> buf(size);
-            lv2_ringbuffer_read(w->requests, (char*)buf.data(), size);
-            w->iface->work(w->dsp_handle, host_respond, w, size, buf.data());
-        }
-    }
-
     static LV2_Worker_Status host_respond(
         LV2_Worker_Respond_Handle handle, uint32_t size, const void* data) {
         
@@ -968,11 +1312,11 @@ private:
     }
 
     void stop_worker() {
-        if (! host_worker_.iface || !host_worker_.running.exchange(false))
+        if (! host_worker_.iface || !host_worker_.running)
             return;
 
-        if (host_worker_.worker_thread.joinable())
-            host_worker_.worker_thread.join();
+        host_worker_.running = false;
+        WorkerPool::shared().remove(&host_worker_);
 
         if (host_worker_.requests) {
             lv2_ringbuffer_free(host_worker_.requests);
@@ -992,18 +1336,44 @@ private:
     LilvWorld* world_;
     LilvPlugin* plugin_;
     LilvInstance* instance_;
+    bool active_ = false;
 
-    LilvNode *audio_class_, *control_class_, *atom_class_, *input_class_, *rsz_minimumSize_;
+    LilvNode *audio_class_ = nullptr, *control_class_ = nullptr, *atom_class_ = nullptr;
+    LilvNode *input_class_ = nullptr, *rsz_minimumSize_ = nullptr;
 
     double sample_rate_;
     uint32_t max_block_length_;
+    bool fixed_block_length_ = false;
     uint32_t required_atom_size_;
 
 public:
     std::vector<Port> ports_;
 private:
+    std::vector<AudioConnection> audio_inputs_, audio_outputs_;
+
+    // ========== Control Smoothing ==========
+    static constexpr uint32_t kSmoothingSubBlock = 32;
+    static constexpr size_t kMaxSplitPorts = 16;
+
+    struct Ramp {
+        uint32_t index;
+        float target;
+        float step;             // per frame
+        uint32_t remaining;     // frames left, 0 finishes on the next advance
+    };
+
+    std::vector<Ramp> ramps_;   // active ramps only, capacity for every port
+    uint32_t ramp_frames_ = 0;
+
+    int64_t stream_frame_ = 0;  // where the next run() starts, for atom timing
+    std::vector<AtomConnection> atom_inputs_, atom_outputs_;
     std::vector<PluginControl*> controls_;
 
+    // Symbol lookup, built with the ports
+    std::vector<std::string> symbols_;
+    std::unordered_map<std::string_view, uint32_t> port_by_symbol_;
+    std::vector<PluginControl*> control_of_port_;
+
     LV2HostWorker host_worker_;
 
     std::atomic<bool> shutdown_;
@@ -0,0 +1,144 @@
+/*
+ * LatencyProbe.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Loopback latency measurement with a maximum length sequence (MLS).
+ *
+ * The probe plays an 8191-frame MLS and records whatever comes back for a
+ * while longer, on the audio thread, one frame at a time. The control
+ * thread then cross-correlates the recording with the sequence: an MLS
+ * correlates with itself as a single sharp peak, so the lag of the peak is
+ * the delay in frames, and its height against the rest of the correlation
+ * says how much to trust it.
+ *
+ * What it plays into and records from is up to the caller: the device (out
+ * through the speaker or a loopback cable and back in through the mic) or
+ * the effect chain alone (fed in digitally, read back from its output).
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <cmath>
+#include <cstdint>
+#include <memory>
+
+class LatencyProbe {
+public:
+    enum Mode : int32_t {
+        Idle,
+        Device,     // play on the output stream, record the input stream
+        Chain       // feed the chain's input, record the chain's output
+    };
+
+    // 2^13 - 1 frames, about 170 ms at 48 kHz
+    static constexpr int32_t kLength = 8191;
+
+    // -12 dBFS, loud enough over room noise, quiet enough not to clip
+    static constexpr float kLevel = 0.25f;
+
+    // Longest delay that can be measured, about 1.4 s at 48 kHz
+    static constexpr int32_t kMaxLag = 65536;
+
+    // A peak below this many times the RMS of the correlation is noise
+    static constexpr float kMinConfidence = 6.0f;
+
+    // Both buffers are allocated once, the audio thread may be looking at
+    // them at any time
+    LatencyProbe() : signal_(new float[kLength]), capture_(new float[kLength + kMaxLag]) {
+        // Galois LFSR, x^13 + x^12 + x^10 + x^9 + 1
+        uint32_t state = 1;
+        for (int32_t i = 0; i < kLength; ++i) {
+            signal_[i] = (state & 1) ? kLevel : -kLevel;
+            state = (state >> 1) ^ ((state & 1) ? 0x1B00u : 0u);
+        }
+    }
+
+    LatencyProbe(const LatencyProbe&) = delete;
+    LatencyProbe& operator=(const LatencyProbe&) = delete;
+
+    // ---------- Control thread ----------
+
+    // Start a measurement of delays up to maxLag frames. bypass asks the
+    // chain to pass audio through untouched (Chain mode only). Only once the
+    // previous measurement is done, or was cancelled a callback ago.
+    void start(Mode mode, int32_t maxLag, bool bypass = false) {
+        done_.store(false, std::memory_order_relaxed);
+        max_lag_ = std::min(std::max(maxLag, 0), kMaxLag);
+        length_ = kLength + max_lag_;
+        pos_ = 0;
+        bypass_ = bypass;
+        mode_.store(mode, std::memory_order_release);
+    }
+
+    // Stop early. The audio thread may still be inside a callback that saw
+    // the old mode, wait for it to end before the next start().
+    void cancel() {
+        mode_.store(Idle, std::memory_order_release);
+    }
+
+    bool done() const { return done_.load(std::memory_order_acquire); }
+
+    /*
+     * Delay of the recording against the sequence, once done(). Returns -1
+     * if there is no clear peak, e.g. nothing came back.
+     *
+     * @param confidence peak height over the RMS of the correlation
+     */
+    int32_t lag(float* confidence = nullptr) const {
+        if (!done()) return -1;
+
+        double best = 0.0, energy = 0.0;
+        int32_t bestLag = -1;
+        for (int32_t lag = 0; lag <= max_lag_; ++lag) {
+            const float* x = capture_.get() + lag;
+            double sum = 0.0;
+            for (int32_t i = 0; i < kLength; ++i) sum += x[i] * signal_[i];
+            energy += sum * sum;
+            if (std::fabs(sum) > best) {
+                best = std::fabs(sum);
+                bestLag = lag;
+            }
+        }
+
+        const double rms = std::sqrt(energy / (max_lag_ + 1));
+        const float ratio = rms > 0.0 ? (float) (best / rms) : 0.0f;
+        if (confidence) *confidence = ratio;
+        return ratio >= kMinConfidence ? bestLag : -1;
+    }
+
+    // ---------- Audio thread ----------
+
+    Mode mode() const { return mode_.load(std::memory_order_acquire); }
+    bool bypass() const { return bypass_; }
+
+    // The sequence offset frames after the one being recorded next, silence
+    // once it has been played
+    float signal(int32_t offset) const {
+        const int32_t i = pos_ + offset;
+        return i < kLength ? signal_[i] : 0.0f;
+    }
+
+    // Record one frame. Returns false, and stops, once the recording is full.
+    bool capture(float sample) {
+        if (pos_ >= length_) return false;
+        capture_[pos_++] = sample;
+        if (pos_ < length_) return true;
+        mode_.store(Idle, std::memory_order_relaxed);
+        done_.store(true, std::memory_order_release);
+        return false;
+    }
+
+private:
+    std::unique_ptr<float[]> signal_;
+    std::unique_ptr<float[]> capture_;
+    int32_t max_lag_ = 0;
+    int32_t length_ = 0;
+    int32_t pos_ = 0;           // audio thread while running
+    bool bypass_ = false;
+
+    std::atomic<Mode> mode_{Idle};
+    std::atomic<bool> done_{false};
+};
@@ -15,6 +15,8 @@
  */
 
 #include <cassert>
+#include <chrono>
+#include <thread>
 #include "logging_macros.h"
 
 #include "LiveEffectEngine.h"
@@ -23,6 +25,93 @@ LiveEffectEngine::LiveEffectEngine() {
     assert(mOutputChannelCount == mInputChannelCount);
 }
 
+bool LiveEffectEngine::setMonoInput(int32_t channel) {
+    if (mIsEffectOn) return false;
+    mMonoChannel = channel < 0 ? -1 : channel;
+    // Open just enough channels to reach the one we want, mono for channel 0
+    mInputChannelCount = mMonoChannel < 0 ? mOutputChannelCount : mMonoChannel + 1;
+
+    // Twins only ever render a second input channel
+    if (!chain.setTwins(mMonoChannel < 0, [this](const LV2Plugin *plugin) {
+            return createTwin(plugin);
+        }))
+        LOGE("Could not update second instances for %s input", mMonoChannel < 0 ? "stereo" : "mono");
+    return true;
+}
+
+bool LiveEffectEngine::setBlockSize(int32_t frames) {
+    if (mIsEffectOn || !FullDuplexPass::isValidBlockSize(frames)) return false;
+    for (size_t i = 0; i < chain.size(); i++) {
+        if (chain.plugin(i)) return false;
+    }
+    mBlockFrames = frames;
+    return true;
+}
+
+LilvWorld *LiveEffectEngine::getWorld() {
+    std::lock_guard<std::mutex> lock(mWorldLock);
+    if (world == nullptr) {
+        world = lilv_world_new();
+        LilvNode *lv2Path = lilv_new_string(world, mLv2Path.c_str());
+        lilv_world_set_option(world, LILV_OPTION_LV2_PATH, lv2Path);
+        lilv_node_free(lv2Path);
+
+        lilv_world_load_all(world);
+        plugins = lilv_world_get_all_plugins(world);
+    }
+    return world;
+}
+
+void LiveEffectEngine::loadCatalog(const std::string &lv2Path) {
+    mLv2Path = lv2Path;
+    const std::string cache = lv2Path + ".catalog";
+    const uint64_t fingerprint = PluginCatalog::fingerprint(lv2Path);
+
+    if (catalog.load(cache, fingerprint)) {
+        LOGD("Plugin catalog loaded from %s", cache.c_str());
+    } else {
+        catalog.scan(getWorld(), fingerprint);
+        if (!catalog.save(cache))
+            LOGW("Could not write plugin catalog to %s", cache.c_str());
+    }
+
+    catalogIndex.build(catalog);
+    LOGD("Plugin catalog: %u plugins", catalog.size());
+}
+
+LV2Plugin *LiveEffectEngine::createPlugin(const char *uri) {
+    LV2Plugin *plugin = new LV2Plugin(getWorld(), uri, sampleRate, mBlockFrames);
+    // The pass always runs whole blocks, but promising that to every plugin
+    // would stop ramps from splitting them; only those that insist get it
+    if (plugin->requiresFixedBlockLength())
+        plugin->setFixedBlockLength(mBlockFrames);
+    plugin->setSmoothingTime(mSmoothingMillis);
+    if (!plugin->initialize()) {
+        delete plugin;
+        return nullptr;
+    }
+
+    plugin->start();
+    return plugin;
+}
+
+LV2Plugin *LiveEffectEngine::createTwin(const LV2Plugin *plugin) {
+    if (mMonoChannel >= 0 || plugin->getUri() == nullptr
+        || plugin->getAudioInputCount() != 1 || plugin->getAudioOutputCount() != 1)
+        return nullptr;
+
+    LV2Plugin *twin = createPlugin(plugin->getUri());
+    if (twin == nullptr) {
+        LOGE("Failed to create second instance of %s, running mono", plugin->getUri());
+        return nullptr;
+    }
+    for (uint32_t i = 0; i < plugin->getPortCount(); i++) {
+        if (plugin->ports_[i].is_control && plugin->ports_[i].is_input)
+            twin->ports_[i].control = plugin->getControlTarget(i);
+    }
+    return twin;
+}
+
 void LiveEffectEngine::setRecordingDeviceId(int32_t deviceId) {
     mRecordingDeviceId = deviceId;
 }
@@ -70,6 +159,7 @@ void LiveEffectEngine::closeStreams() {
     closeStream(mPlayStream);
     closeStream(mRecordingStream);
     mDuplexStream.reset();
+    chain.detach();
 }
 
 oboe::Result  LiveEffectEngine::openStreams() {
@@ -101,13 +191,16 @@ oboe::Result  LiveEffectEngine::openStreams() {
     warnIfNotLowLatency(mRecordingStream);
 
     mDuplexStream = std::make_unique<FullDuplexPass>();
-    mDuplexStream -> plugin1 = plugin1 ;
-    mDuplexStream -> plugin2 = plugin2 ;
-    mDuplexStream -> plugin3 = plugin3 ;
-    mDuplexStream -> plugin4 = plugin4 ;
+    mDuplexStream -> chain = &chain ;
+    mDuplexStream->stats = &mStats;
+    mDuplexStream->watchdog = &mWatchdog;
+    mDuplexStream->probe = &mProbe;
     mDuplexStream->instance = instance ;
+    mDuplexStream->prepare(mBlockFrames, mRecordingStream->getChannelCount(), mSampleRate);
+    mDuplexStream->setMonoInput(mMonoChannel);
     mDuplexStream->setSharedInputStream(mRecordingStream);
     mDuplexStream->setSharedOutputStream(mPlayStream);
+    chain.attach();
     mDuplexStream->start();
     return result;
 }
@@ -213,7 +306,127 @@ void LiveEffectEngine::warnIfNotLowLatency(std::shared_ptr<oboe::AudioStream> &s
  */
 oboe::DataCallbackResult LiveEffectEngine::onAudioReady(
     oboe::AudioStream *oboeStream, void *audioData, int32_t numFrames) {
-    return mDuplexStream->onAudioReady(oboeStream, audioData, numFrames);
+    mStats.begin();
+    oboe::DataCallbackResult result = mDuplexStream->onAudioReady(oboeStream, audioData, numFrames);
+    mStats.end(numFrames, oboeStream->getSampleRate());
+    return result;
+}
+
+/*
+ * Run one probe measurement and wait for it. Returns the delay in frames, or
+ * -1 on timeout or when there was no clear peak.
+ */
+int32_t LiveEffectEngine::probe(LatencyProbe::Mode mode, int32_t maxLag, bool bypass) {
+    const int32_t rate = mSampleRate > 0 ? mSampleRate : sampleRate;
+    const auto timeout = std::chrono::milliseconds(
+        (int64_t) (LatencyProbe::kLength + maxLag) * 1000 / rate + 500);
+
+    mProbe.start(mode, maxLag, bypass);
+    const auto deadline = std::chrono::steady_clock::now() + timeout;
+    while (!mProbe.done()) {
+        if (std::chrono::steady_clock::now() > deadline) {
+            // Let a callback that still saw the probe running finish with it
+            mProbe.cancel();
+            std::this_thread::sleep_for(std::chrono::milliseconds(50));
+            return -1;
+        }
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    }
+
+    float confidence = 0.0f;
+    int32_t lag = mProbe.lag(&confidence);
+    LOGI("Latency probe mode %d: %d frames, confidence %.1f", mode, lag, confidence);
+    return lag;
+}
+
+// Time from handing a frame to the stream to it leaving the device
+static double outputLatencyMillis(oboe::AudioStream *stream) {
+    auto timestamp = stream->getTimestamp(CLOCK_MONOTONIC);
+    if (!timestamp) return -1.0;
+    const int64_t written = stream->getFramesWritten();
+    const int64_t now = std::chrono::duration_cast<std::chrono::nanoseconds>(
+        std::chrono::steady_clock::now().time_since_epoch()).count();
+    const double presented = timestamp.value().timestamp
+        + (written - timestamp.value().position) * 1e9 / stream->getSampleRate();
+    return (presented - now) / 1e6;
+}
+
+// Time from a frame entering the device to it being read from the stream
+static double inputLatencyMillis(oboe::AudioStream *stream) {
+    auto timestamp = stream->getTimestamp(CLOCK_MONOTONIC);
+    if (!timestamp) return -1.0;
+    const int64_t read = stream->getFramesRead();
+    const int64_t now = std::chrono::duration_cast<std::chrono::nanoseconds>(
+        std::chrono::steady_clock::now().time_since_epoch()).count();
+    const double captured = timestamp.value().timestamp
+        + (read - timestamp.value().position) * 1e9 / stream->getSampleRate();
+    return (now - captured) / 1e6;
+}
+
+bool LiveEffectEngine::measureLatency(double *latency) {
+    if (!mIsEffectOn || !mDuplexStream) return false;
+    std::fill(latency, latency + kLatencyCount, -1.0);
+
+    const double millis = 1000.0 / (mSampleRate > 0 ? mSampleRate : sampleRate);
+
+    // Through the device, up to a second
+    const int32_t device = probe(LatencyProbe::Device,
+                                 std::min(LatencyProbe::kMaxLag, mSampleRate), false);
+    if (device < 0) return false;
+    latency[kLatencyDevice] = device * millis;
+    latency[kLatencyInput] = inputLatencyMillis(mRecordingStream.get());
+    latency[kLatencyOutput] = outputLatencyMillis(mPlayStream.get());
+
+    // Through the FIFOs only, then through the plugins as well
+    const int32_t maxChainLag = 8192;
+    const int32_t scheduler = probe(LatencyProbe::Chain, maxChainLag, true);
+    const int32_t chained = probe(LatencyProbe::Chain, maxChainLag, false);
+    if (scheduler >= 0) latency[kLatencyScheduler] = scheduler * millis;
+    if (scheduler >= 0 && chained >= 0)
+        latency[kLatencyPlugins] = std::max(chained - scheduler, 0) * millis;
+    if (chained >= 0) latency[kLatencyRoundTrip] = (device + chained) * millis;
+    return true;
+}
+
+bool LiveEffectEngine::getSlotStats(size_t pos, double *stats) {
+    CostSnapshot cost;
+    if (!chain.cost(pos, cost)) return false;
+
+    const double micros = 1e-3;
+    stats[kSlotBlocks] = cost.blocks;
+    stats[kSlotMeanMicros] = cost.meanNanos * micros;
+    stats[kSlotP99Micros] = cost.p99Nanos * micros;
+    stats[kSlotMaxMicros] = cost.maxNanos * micros;
+    stats[kSlotShareMean] = cost.shareMean;
+    stats[kSlotShareP99] = cost.shareP99;
+    stats[kSlotShareMax] = cost.shareMax;
+    return true;
+}
+
+void LiveEffectEngine::getStats(double *stats) {
+    auto xruns = [](std::shared_ptr<oboe::AudioStream> &stream) {
+        if (!stream) return -1.0;
+        auto count = stream->getXRunCount();
+        return count ? (double) count.value() : -1.0;
+    };
+    const double micros = 1e-3;
+    const double load = 1.0 / CallbackStats::kLoadScale;
+
+    stats[kStatCallbacks] = mStats.wallNanos().count();
+    stats[kStatOutputXRuns] = xruns(mPlayStream);
+    stats[kStatInputXRuns] = xruns(mRecordingStream);
+    stats[kStatUnderflows] = mStats.underflows();
+    stats[kStatDeadlineMicros] = mStats.deadlineNanos() * micros;
+    stats[kStatWallMeanMicros] = mStats.wallNanos().mean() * micros;
+    stats[kStatWallP99Micros] = mStats.wallNanos().percentile(0.99) * micros;
+    stats[kStatWallMaxMicros] = mStats.wallNanos().max() * micros;
+    stats[kStatCpuMeanMicros] = mStats.cpuNanos().mean() * micros;
+    stats[kStatCpuP99Micros] = mStats.cpuNanos().percentile(0.99) * micros;
+    stats[kStatCpuMaxMicros] = mStats.cpuNanos().max() * micros;
+    stats[kStatLoadMean] = mStats.load().mean() * load;
+    stats[kStatLoadP99] = mStats.load().percentile(0.99) * load;
+    stats[kStatLoadP999] = mStats.load().percentile(0.999) * load;
+    stats[kStatLoadMax] = mStats.load().max() * load;
 }
 
 /**
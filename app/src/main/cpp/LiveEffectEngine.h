@@ -21,13 +21,25 @@
 #include <oboe/Oboe.h>
 #include <string>
 #include <thread>
+#include "CallbackStats.hpp"
 #include "FullDuplexPass.h"
+#include "CatalogIndex.hpp"
+#include "PluginCatalog.hpp"
 #include "json.hpp"
 
 using json = nlohmann::json;
 
 class LiveEffectEngine : public oboe::AudioStreamCallback {
 public:
+    // Empty pedal slots the chain starts with, the UI grows it from there
+    static constexpr size_t kDefaultSlotCount = 4;
+
+    // Frames per internal processing block, see FullDuplexPass::prepare
+    static constexpr int32_t kDefaultBlockFrames = 64;
+
+    // Ramp time for control changes, see LV2Plugin::setSmoothingTime
+    static constexpr float kDefaultSmoothingMillis = 20.0f;
+
     LiveEffectEngine();
 
     void setRecordingDeviceId(int32_t deviceId);
@@ -52,18 +64,164 @@ public:
     void onErrorAfterClose(oboe::AudioStream *oboeStream, oboe::Result error) override;
 
     bool setAudioApi(oboe::AudioApi);
+
+    /**
+     * Read a single input channel and process it as mono, see
+     * FullDuplexPass::setMonoInput. Only while the effect is off.
+     *
+     * @param channel input channel to read, or -1 for stereo input
+     * @return true if it succeeds
+     */
+    bool setMonoInput(int32_t channel);
+
+    /**
+     * Change the internal block size. Plugins are built for one fixed block
+     * size, so only while the effect is off and no slot holds a plugin.
+     *
+     * @param frames power of two between 16 and 256
+     * @return true if it succeeds
+     */
+    bool setBlockSize(int32_t frames);
+    int32_t getBlockSize() const { return mBlockFrames; }
+
+    /**
+     * Ramp time for control changes of plugins loaded from now on.
+     *
+     * @param millis ramp length, 0 to apply changes at once
+     */
+    void setSmoothingTime(float millis) { mSmoothingMillis = millis; }
+
+    /**
+     * Instantiate and activate a plugin for the current sample rate and
+     * block size. Not for the audio thread.
+     *
+     * @return the plugin, or nullptr if it could not be loaded
+     */
+    LV2Plugin *createPlugin(const char *uri);
+
+    /**
+     * Second instance of a one-in, one-out plugin to render the right
+     * channel, with the same control values. Only with stereo input: a mono
+     * input runs such plugins on one channel. Not for the audio thread.
+     *
+     * @return the twin, or nullptr if the plugin gets none
+     */
+    LV2Plugin *createTwin(const LV2Plugin *plugin);
+
+    /**
+     * Find the installed plugins and fill catalog. Uses the catalog cached
+     * next to the LV2 directory when no bundle has changed since it was
+     * written, in which case no Turtle is parsed at all; otherwise scans the
+     * bundles and rewrites the cache.
+     *
+     * @param lv2Path LV2 directory, or several separated by ':'
+     */
+    void loadCatalog(const std::string &lv2Path);
+
+    /**
+     * The lilv world, loaded on first use: only instantiating a plugin needs
+     * it. Thread-safe.
+     */
+    LilvWorld *getWorld();
+
+    PluginCatalog catalog;
+    CatalogIndex catalogIndex;      // built with the catalog, read-only after
+
+    // Layout of the array filled by getStats()
+    enum StatsField {
+        kStatCallbacks,
+        kStatOutputXRuns,       // getXRunCount() of the playback stream
+        kStatInputXRuns,        // getXRunCount() of the recording stream
+        kStatUnderflows,        // callbacks with fewer input than output frames
+        kStatDeadlineMicros,    // duration of the last callback's frames
+        kStatWallMeanMicros,
+        kStatWallP99Micros,
+        kStatWallMaxMicros,
+        kStatCpuMeanMicros,
+        kStatCpuP99Micros,
+        kStatCpuMaxMicros,
+        kStatLoadMean,          // wall time / deadline
+        kStatLoadP99,
+        kStatLoadP999,
+        kStatLoadMax,
+        kStatCount
+    };
+
+    /**
+     * Snapshot the callback timing since the last resetStats(). XRun counts
+     * are -1 when the stream is closed or does not report them.
+     *
+     * @param stats kStatCount values, indexed by StatsField
+     */
+    void getStats(double *stats);
+    void resetStats() {
+        mStats.reset();
+        chain.resetCosts();
+    }
+
+    // Layout of the array filled by getSlotStats()
+    enum SlotStatsField {
+        kSlotBlocks,
+        kSlotMeanMicros,
+        kSlotP99Micros,
+        kSlotMaxMicros,
+        kSlotShareMean,         // time spent / duration of the block
+        kSlotShareP99,
+        kSlotShareMax,
+        kSlotStatCount
+    };
+
+    /**
+     * Snapshot what the plugin in slot pos costs per block.
+     *
+     * @param stats kSlotStatCount values, indexed by SlotStatsField
+     * @return false for an empty slot
+     */
+    bool getSlotStats(size_t pos, double *stats);
+
+    /**
+     * Bypass the most expensive slot, with a fade, when the chain takes more
+     * than threshold of the block period for blocks blocks in a row, see
+     * Watchdog. Takes effect immediately.
+     *
+     * @param threshold fraction of the block period, 0 to turn it off
+     */
+    void setWatchdog(float threshold, int32_t blocks) { mWatchdog.configure(threshold, blocks); }
+
+    // Next slot the watchdog throttled or restored; false if none. UI thread.
+    bool pollWatchdog(Watchdog::Event &event) { return mWatchdog.poll(event); }
+
+    // Layout of the array filled by measureLatency(), all in milliseconds,
+    // -1 where a part could not be measured
+    enum LatencyField {
+        kLatencyRoundTrip,      // device + scheduler + plugins
+        kLatencyDevice,         // output to input through the device, measured
+        kLatencyInput,          // input part of it, from the stream timestamps
+        kLatencyOutput,         // output part of it, from the stream timestamps
+        kLatencyScheduler,      // through the FIFOs with the chain bypassed
+        kLatencyPlugins,        // what the active chain adds on top of that
+        kLatencyCount
+    };
+
+    /**
+     * Measure the round trip latency with a test signal, see LatencyProbe.
+     * Plays a loud noise burst on the output, so needs the output looped
+     * back to the input (cable, or speaker and mic). Blocks for about a
+     * second, keep it off the UI thread. Only while the effect is on.
+     *
+     * @param latency kLatencyCount values, indexed by LatencyField
+     * @return false if the streams are not running or nothing came back
+     */
+    bool measureLatency(double *latency);
+
     bool isAAudioRecommended(void);
 
     std::string cacheDir ;
     std::unique_ptr<FullDuplexPass> mDuplexStream;
-    LV2Plugin * plugin1 = nullptr;
-    LV2Plugin * plugin2 = nullptr;
-    LV2Plugin * plugin3 = nullptr;
-    LV2Plugin * plugin4 = nullptr;
+    PluginChain chain {kDefaultSlotCount};
     LilvInstance *instance = nullptr;
     LilvWorld * world = nullptr;
     const LilvPlugins * plugins = nullptr;
-    json pluginInfo;
     std::shared_ptr<oboe::AudioStream> mRecordingStream;
     std::shared_ptr<oboe::AudioStream> mPlayStream;
     int32_t sampleRate = oboe::DefaultStreamValues::SampleRate ;
@@ -76,7 +234,16 @@ private:
     const oboe::AudioFormat mFormat = oboe::AudioFormat::Float; // for easier processing
     oboe::AudioApi    mAudioApi = oboe::AudioApi::AAudio;
     int32_t           mSampleRate = oboe::kUnspecified;
-    const int32_t     mInputChannelCount = oboe::ChannelCount::Stereo;
+    int32_t           mInputChannelCount = oboe::ChannelCount::Stereo;
+    int32_t           mMonoChannel = -1;
+    int32_t           mBlockFrames = kDefaultBlockFrames;
+    CallbackStats     mStats;
+    Watchdog          mWatchdog;
+    std::string       mLv2Path;
+    std::mutex        mWorldLock;
+    LatencyProbe      mProbe;
+    int32_t probe(LatencyProbe::Mode mode, int32_t maxLag, bool bypass);
+    float             mSmoothingMillis = kDefaultSmoothingMillis;
     const int32_t     mOutputChannelCount = oboe::ChannelCount::Stereo;
     oboe::Result openStreams();
 
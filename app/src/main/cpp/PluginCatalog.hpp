@@ -0,0 +1,444 @@
+/*
+ * PluginCatalog.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * What plugins are installed, without loading them: URI, name, author,
+ * class and every port with its range and properties.
+ *
+ * Discovering this through lilv means parsing the Turtle of every bundle,
+ * which dominates cold start once there are a few hundred of them. The
+ * catalog is therefore scanned once and written to a compact binary file,
+ * which later launches memory-map and use in place. The file is keyed by a
+ * fingerprint of the bundles (path, modification time and size of every
+ * file in them, subdirectories included, since a manifest may point at data
+ * or binaries further down) that takes only a few stat() calls to
+ * recompute, so any bundle added, removed or changed triggers a rescan.
+ *
+ * File layout, all integers in native byte order (Java reads the same bytes
+ * through a direct buffer, see PluginCatalog.java):
+ *
+ *   Header
+ *   Plugin[pluginCount]
+ *   Port[portCount]        ports of each plugin are contiguous
+ *   char strings[]         NUL-terminated, referenced by offset
+ */
+
+#pragma once
+
+#include <lilv/lilv.h>
+#include <lv2/atom/atom.h>
+#include <lv2/core/lv2.h>
+#include <lv2/midi/midi.h>
+#include <lv2/port-props/port-props.h>
+
+#include <algorithm>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <initializer_list>
+#include <string>
+#include <unordered_map>
+#include <utility>
+#include <vector>
+#include <dirent.h>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+class PluginCatalog {
+public:
+    static constexpr uint32_t kMagic = 0x4332564c;     // "LV2C"
+    static constexpr uint32_t kVersion = 1;
+
+    enum PortType : uint8_t { Other, Audio, Control, Atom, CV };
+
+    enum PortFlags : uint8_t {
+        Input       = 1 << 0,
+        Toggled     = 1 << 1,
+        Integer     = 1 << 2,
+        Enumeration = 1 << 3,
+        Logarithmic = 1 << 4,
+        Trigger     = 1 << 5,
+        Midi        = 1 << 6,   // atom port that takes or sends MIDI events
+    };
+
+    struct Header {
+        uint32_t magic;
+        uint32_t version;
+        uint64_t fingerprint;
+        uint32_t pluginCount;
+        uint32_t portCount;
+        uint32_t stringsSize;
+        uint32_t reserved;
+    };
+
+    struct Plugin {
+        uint32_t uri, name, author, className;  // string offsets
+        uint32_t firstPort;
+        uint32_t portCount;
+    };
+
+    struct Port {
+        uint32_t symbol, name;                  // string offsets
+        uint32_t index;
+        PortType type;
+        uint8_t flags;
+        uint16_t reserved;
+        float min, max, def;                    // 0 where the port has none
+    };
+
+    static_assert(sizeof(Header) == 32, "Header layout is shared with Java");
+    static_assert(sizeof(Plugin) == 24, "Plugin layout is shared with Java");
+    static_assert(sizeof(Port) == 28, "Port layout is shared with Java");
+
+    PluginCatalog() = default;
+    ~PluginCatalog() {
+        unmap();
+        for (auto& m : previous_maps_) munmap(m.first, m.second);
+    }
+
+    PluginCatalog(const PluginCatalog&) = delete;
+    PluginCatalog& operator=(const PluginCatalog&) = delete;
+
+    /*
+     * Hash of every bundle under the LV2 path: names, and the modification
+     * time and size of each file anywhere inside them. Sorted, so the order
+     * readdir() happens to return does not matter.
+     */
+    static uint64_t fingerprint(const std::string& lv2Path) {
+        std::vector<std::string> entries;
+        for (const std::string& dir : split(lv2Path)) {
+            for (const std::string& bundle : list(dir))
+                statTree(dir + "/" + bundle, 0, entries);
+        }
+        std::sort(entries.begin(), entries.end());
+
+        uint64_t h = 14695981039346656037ull;   // FNV-1a
+        for (const std::string& entry : entries) {
+            for (unsigned char c : entry) h = (h ^ c) * 1099511628211ull;
+            h = (h ^ '\n') * 1099511628211ull;
+        }
+        return h;
+    }
+
+    // Map a cache file written by save(); false if it is missing, from an
+    // older version, or for other bundles
+    bool load(const std::string& file, uint64_t expectedFingerprint) {
+        keepPrevious();
+        int fd = open(file.c_str(), O_RDONLY | O_CLOEXEC);
+        if (fd < 0) return false;
+
+        struct stat st;
+        if (fstat(fd, &st) != 0 || (size_t) st.st_size < sizeof(Header)) {
+            close(fd);
+            return false;
+        }
+        void* data = mmap(nullptr, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+        close(fd);
+        if (data == MAP_FAILED) return false;
+
+        map_ = data;
+        map_size_ = st.st_size;
+        if (!attach(static_cast<const uint8_t*>(data), map_size_)
+            || header_->fingerprint != expectedFingerprint) {
+            unmap();
+            return false;
+        }
+        return true;
+    }
+
+    // Read everything lilv knows about into this catalog
+    void scan(LilvWorld* world, uint64_t fingerprint) {
+        keepPrevious();
+        Builder builder(world);
+        const LilvPlugins* plugins = lilv_world_get_all_plugins(world);
+        LILV_FOREACH (plugins, i, plugins) builder.add(lilv_plugins_get(plugins, i));
+        owned_ = builder.finish(fingerprint);
+        attach(owned_.data(), owned_.size());
+    }
+
+    // Write the catalog for the next launch. Atomic and durable: a crash or
+    // power cut half way leaves the previous file, or none.
+    bool save(const std::string& file) const {
+        if (!header_) return false;
+        const std::string temp = file + ".tmp";
+        FILE* f = fopen(temp.c_str(), "wb");
+        if (!f) return false;
+        // On disk before the rename, or a power cut could leave an empty or
+        // torn file under the final name
+        bool ok = fwrite(base_, 1, size_, f) == size_;
+        ok = ok && fflush(f) == 0 && fsync(fileno(f)) == 0;
+        ok = fclose(f) == 0 && ok;
+        if (ok) ok = rename(temp.c_str(), file.c_str()) == 0;
+        if (!ok) {
+            remove(temp.c_str());
+            return false;
+        }
+
+        // And the rename itself
+        const size_t slash = file.rfind('/');
+        const std::string dir = slash == std::string::npos ? "." : file.substr(0, slash);
+        int fd = open(dir.c_str(), O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+        if (fd >= 0) {
+            fsync(fd);
+            close(fd);
+        }
+        return true;
+    }
+
+    // The serialized catalog, as laid out above. Stays valid for the life of
+    // the catalog: Java may hold a buffer over it, so a later load() or
+    // scan() leaves it in place rather than unmapping it
+    const uint8_t* data() const { return base_; }
+    size_t bytes() const { return size_; }
+
+    uint32_t size() const { return header_ ? header_->pluginCount : 0; }
+    const Plugin& plugin(uint32_t i) const { return plugins_[i]; }
+    const Port& port(const Plugin& plugin, uint32_t i) const { return ports_[plugin.firstPort + i]; }
+    const char* string(uint32_t offset) const { return strings_ + offset; }
+
+    // Index of the plugin with this URI, -1 if there is none
+    int32_t find(const char* uri) const {
+        for (uint32_t i = 0; i < size(); ++i)
+            if (strcmp(string(plugins_[i].uri), uri) == 0) return (int32_t) i;
+        return -1;
+    }
+
+private:
+    // Collects plugins and interns their strings
+    class Builder {
+    public:
+        explicit Builder(LilvWorld* world) : world_(world) {
+            audio_ = lilv_new_uri(world, LV2_CORE__AudioPort);
+            control_ = lilv_new_uri(world, LV2_CORE__ControlPort);
+            atom_ = lilv_new_uri(world, LV2_ATOM__AtomPort);
+            cv_ = lilv_new_uri(world, LV2_CORE__CVPort);
+            input_ = lilv_new_uri(world, LV2_CORE__InputPort);
+            toggled_ = lilv_new_uri(world, LV2_CORE__toggled);
+            integer_ = lilv_new_uri(world, LV2_CORE__integer);
+            enumeration_ = lilv_new_uri(world, LV2_CORE__enumeration);
+            logarithmic_ = lilv_new_uri(world, LV2_PORT_PROPS__logarithmic);
+            trigger_ = lilv_new_uri(world, LV2_PORT_PROPS__trigger);
+            midi_ = lilv_new_uri(world, LV2_MIDI__MidiEvent);
+            strings_.push_back('\0');   // offset 0 is the empty string
+        }
+
+        ~Builder() {
+            for (LilvNode* node : {audio_, control_, atom_, cv_, input_, toggled_, integer_,
+                                   enumeration_, logarithmic_, trigger_, midi_})
+                lilv_node_free(node);
+        }
+
+        void add(const LilvPlugin* p) {
+            Plugin plugin {};
+            plugin.uri = intern(lilv_node_as_uri(lilv_plugin_get_uri(p)));
+            plugin.name = take(lilv_plugin_get_name(p));
+            plugin.author = take(lilv_plugin_get_author_name(p));
+            const LilvPluginClass* cls = lilv_plugin_get_class(p);
+            plugin.className = cls ? intern(lilv_node_as_string(lilv_plugin_class_get_label(cls))) : 0;
+            plugin.firstPort = ports_.size();
+            plugin.portCount = lilv_plugin_get_num_ports(p);
+
+            for (uint32_t i = 0; i < plugin.portCount; ++i) {
+                const LilvPort* lp = lilv_plugin_get_port_by_index(p, i);
+                Port port {};
+                port.index = i;
+                port.symbol = intern(lilv_node_as_string(lilv_port_get_symbol(p, lp)));
+                port.name = take(lilv_port_get_name(p, lp));
+
+                if (lilv_port_is_a(p, lp, audio_)) port.type = Audio;
+                else if (lilv_port_is_a(p, lp, control_)) port.type = Control;
+                else if (lilv_port_is_a(p, lp, atom_)) port.type = Atom;
+                else if (lilv_port_is_a(p, lp, cv_)) port.type = CV;
+
+                if (lilv_port_is_a(p, lp, input_)) port.flags |= Input;
+                if (lilv_port_has_property(p, lp, toggled_)) port.flags |= Toggled;
+                if (lilv_port_has_property(p, lp, integer_)) port.flags |= Integer;
+                if (lilv_port_has_property(p, lp, enumeration_)) port.flags |= Enumeration;
+                if (lilv_port_has_property(p, lp, logarithmic_)) port.flags |= Logarithmic;
+                if (lilv_port_has_property(p, lp, trigger_)) port.flags |= Trigger;
+                if (port.type == Atom && lilv_port_supports_event(p, lp, midi_)) port.flags |= Midi;
+
+                if (port.type == Control) {
+                    LilvNode *def = nullptr, *min = nullptr, *max = nullptr;
+                    lilv_port_get_range(p, lp, &def, &min, &max);
+                    port.def = def ? lilv_node_as_float(def) : 0.0f;
+                    port.min = min ? lilv_node_as_float(min) : 0.0f;
+                    port.max = max ? lilv_node_as_float(max) : 0.0f;
+                    lilv_node_free(def);
+                    lilv_node_free(min);
+                    lilv_node_free(max);
+                }
+                ports_.push_back(port);
+            }
+            plugins_.push_back(plugin);
+        }
+
+        std::vector<uint8_t> finish(uint64_t fingerprint) {
+            Header header { kMagic, kVersion, fingerprint, (uint32_t) plugins_.size(),
+                            (uint32_t) ports_.size(), (uint32_t) strings_.size(), 0 };
+            std::vector<uint8_t> out;
+            out.reserve(sizeof(header) + plugins_.size() * sizeof(Plugin)
+                        + ports_.size() * sizeof(Port) + strings_.size());
+            append(out, &header, sizeof(header));
+            append(out, plugins_.data(), plugins_.size() * sizeof(Plugin));
+            append(out, ports_.data(), ports_.size() * sizeof(Port));
+            append(out, strings_.data(), strings_.size());
+            return out;
+        }
+
+    private:
+        static void append(std::vector<uint8_t>& out, const void* data, size_t size) {
+            const uint8_t* bytes = static_cast<const uint8_t*>(data);
+            out.insert(out.end(), bytes, bytes + size);
+        }
+
+        uint32_t intern(const char* s) {
+            if (!s || !*s) return 0;
+            auto found = offsets_.find(s);
+            if (found != offsets_.end()) return found->second;
+            const uint32_t offset = strings_.size();
+            strings_.insert(strings_.end(), s, s + strlen(s) + 1);
+            offsets_.emplace(s, offset);
+            return offset;
+        }
+
+        // Intern and free a node lilv handed over
+        uint32_t take(LilvNode* node) {
+            uint32_t offset = node ? intern(lilv_node_as_string(node)) : 0;
+            lilv_node_free(node);
+            return offset;
+        }
+
+        LilvWorld* world_;
+        LilvNode *audio_, *control_, *atom_, *cv_, *input_;
+        LilvNode *toggled_, *integer_, *enumeration_, *logarithmic_, *trigger_, *midi_;
+        std::vector<Plugin> plugins_;
+        std::vector<Port> ports_;
+        std::vector<char> strings_;
+        std::unordered_map<std::string, uint32_t> offsets_;
+    };
+
+    // Point the accessors at a serialized catalog, checking it fits
+    bool attach(const uint8_t* data, size_t size) {
+        const auto* header = reinterpret_cast<const Header*>(data);
+        if (size < sizeof(Header) || header->magic != kMagic || header->version != kVersion)
+            return false;
+
+        if (header->pluginCount > size / sizeof(Plugin) || header->portCount > size / sizeof(Port)
+            || header->stringsSize > size)
+            return false;
+        const size_t plugins = sizeof(Header);
+        const size_t ports = plugins + (size_t) header->pluginCount * sizeof(Plugin);
+        const size_t strings = ports + (size_t) header->portCount * sizeof(Port);
+        if (strings + header->stringsSize != size || header->stringsSize == 0
+            || data[size - 1] != '\0')
+            return false;
+
+        // Every port range and string offset, so that neither this side nor
+        // Java reads past the data of a corrupt or foreign file. The table
+        // ends in a NUL, so any offset inside it is a terminated string.
+        const uint32_t stringsSize = header->stringsSize;
+        const auto* plugin = reinterpret_cast<const Plugin*>(data + plugins);
+        for (uint32_t i = 0; i < header->pluginCount; ++i, ++plugin) {
+            if (plugin->uri >= stringsSize || plugin->name >= stringsSize
+                || plugin->author >= stringsSize || plugin->className >= stringsSize
+                || plugin->firstPort > header->portCount
+                || plugin->portCount > header->portCount - plugin->firstPort)
+                return false;
+        }
+        const auto* port = reinterpret_cast<const Port*>(data + ports);
+        for (uint32_t i = 0; i < header->portCount; ++i, ++port) {
+            if (port->symbol >= stringsSize || port->name >= stringsSize) return false;
+        }
+
+        base_ = data;
+        size_ = size;
+        header_ = header;
+        plugins_ = reinterpret_cast<const Plugin*>(data + plugins);
+        ports_ = reinterpret_cast<const Port*>(data + ports);
+        strings_ = reinterpret_cast<const char*>(data + strings);
+        return true;
+    }
+
+    // Set the current data aside until destruction; a reload happens at
+    // most once per initPlugins, so little ever piles up
+    void keepPrevious() {
+        if (map_) previous_maps_.emplace_back(map_, map_size_);
+        else if (!owned_.empty()) previous_owned_.push_back(std::move(owned_));
+        map_ = nullptr;
+        unmap();
+    }
+
+    // Free the current data, only for data never handed out
+    void unmap() {
+        if (map_) munmap(map_, map_size_);
+        map_ = nullptr;
+        map_size_ = 0;
+        owned_.clear();
+        base_ = nullptr;
+        size_ = 0;
+        header_ = nullptr;
+        plugins_ = nullptr;
+        ports_ = nullptr;
+        strings_ = nullptr;
+    }
+
+    static std::vector<std::string> split(const std::string& path) {
+        std::vector<std::string> dirs;
+        size_t start = 0;
+        while (start <= path.size()) {
+            size_t end = path.find(':', start);
+            if (end == std::string::npos) end = path.size();
+            if (end > start) dirs.push_back(path.substr(start, end - start));
+            start = end + 1;
+        }
+        return dirs;
+    }
+
+    // Deep enough for any bundle layout, shallow enough to stop a symlink
+    // loop
+    static constexpr int kMaxDepth = 8;
+
+    // "path|mtime|size" of every file under path
+    static void statTree(const std::string& path, int depth, std::vector<std::string>& entries) {
+        struct stat st;
+        if (stat(path.c_str(), &st) != 0) return;
+        if (S_ISDIR(st.st_mode)) {
+            if (depth >= kMaxDepth) return;
+            for (const std::string& name : list(path)) statTree(path + "/" + name, depth + 1, entries);
+            return;
+        }
+        entries.push_back(path + "|" + std::to_string((long long) st.st_mtime) + "|"
+                          + std::to_string((long long) st.st_size));
+    }
+
+    static std::vector<std::string> list(const std::string& dir) {
+        std::vector<std::string> names;
+        DIR* d = opendir(dir.c_str());
+        if (!d) return names;
+        while (dirent* entry = readdir(d)) {
+            if (entry->d_name[0] == '.') continue;
+            names.emplace_back(entry->d_name);
+        }
+        closedir(d);
+        return names;
+    }
+
+    void* map_ = nullptr;
+    size_t map_size_ = 0;
+    std::vector<uint8_t> owned_;    // a fresh scan, when not mapped
+
+    // Earlier data Java may still be reading, see data()
+    std::vector<std::pair<void*, size_t>> previous_maps_;
+    std::vector<std::vector<uint8_t>> previous_owned_;
+
+    const uint8_t* base_ = nullptr;
+    size_t size_ = 0;
+    const Header* header_ = nullptr;
+    const Plugin* plugins_ = nullptr;
+    const Port* ports_ = nullptr;
+    const char* strings_ = nullptr;
+};
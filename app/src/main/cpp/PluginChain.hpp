@@ -0,0 +1,700 @@
+/*
+ * PluginChain.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Ordered, variable-length list of effect slots shared between the control
+ * (JNI) thread and the Oboe audio callback.
+ *
+ * The control thread owns the master list and edits it freely. Every edit
+ * builds a new immutable ChainSnapshot. Snapshots, parameter changes and
+ * bypass toggles all travel to the audio thread through one wait-free
+ * command queue, which the callback drains at the start of every block, so
+ * the audio thread never sees a half-applied change and the control thread
+ * never writes to memory the callback is reading. Slider moves can skip the
+ * queue altogether through a slot's ControlSurface, polled every block.
+ *
+ * Commands may carry a stream frame from the chain's StreamClock. The audio
+ * thread then holds them back until the block containing that frame, so a
+ * footswitch lands on the same block whatever burst size the device uses.
+ * Within the block, a slot whose plugin takes blocks of any length has its
+ * control and bypass changes left for the pass, which splits the block at
+ * the exact frame (see applyEvents()); only plugins that insist on a fixed
+ * block length get them at the start of the block. Atom messages stamped
+ * the same way land on the exact frame either way.
+ *
+ * Replacing the plugin in a slot does not cut over: the new slot keeps the
+ * old one as `outgoing` and the audio thread runs both side by side for a
+ * short equal-power crossfade, then retires the old one itself. Replacing
+ * again mid-fade chains the fades: the old slot keeps fading out its own
+ * outgoing while it fades out itself.
+ *
+ * Snapshots the audio thread has switched away from, together with the slots
+ * their successor dropped, are handed to a PluginReaper and destroyed on its
+ * background thread once the callback has left the block, so plugin teardown
+ * runs on neither the audio nor the UI thread. Should the reaper's queue be
+ * full, the audio thread keeps what it would retire, and the command that
+ * would free it, until a later block finds room.
+ *
+ * Control calls never wait on the audio thread for long: if the queue stays
+ * full (the callback stalled without a detach()) they give up and report
+ * failure, leaving the chain as it was.
+ */
+
+#pragma once
+
+#include "CallbackStats.hpp"
+#include "CommandQueue.hpp"
+#include "LV2Plugin.hpp"
+#include "PluginReaper.hpp"
+#include "StreamClock.hpp"
+
+#include <atomic>
+#include <algorithm>
+#include <chrono>
+#include <cstdint>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+// ============================================================================
+// ControlSurface - Port values the UI writes directly, without a JNI call
+// ============================================================================
+
+// Layout, in 32-bit native-endian words, as seen through a Java direct
+// ByteBuffer:  [0] generation  [1] port count  [2 + i] value of port i
+//
+// The UI thread writes values and then bumps the generation. Once per block
+// the audio thread compares the generation with the last one it saw and, if
+// it moved, applies every value that differs from its private shadow copy,
+// so values set through other paths (setControl, presets) are left alone
+// unless the UI touched them. Java stores carry no ordering guarantee, so
+// after a change the values are scanned once more on the next block to
+// catch any that became visible after the generation did. Only control
+// inputs are applied: whatever the UI writes over any other port is ignored.
+
+struct ControlSurface {
+    static constexpr size_t kHeaderWords = 2;
+
+    explicit ControlSurface(const LV2Plugin* plugin)
+        : count(plugin->getPortCount()),
+          words(new int32_t[kHeaderWords + count]),
+          shadow(new float[count]),
+          input(new bool[count]) {
+        words[0] = 0;
+        words[1] = (int32_t) count;
+        for (size_t i = 0; i < count; ++i) {
+            shadow[i] = values()[i] = plugin->ports_[i].control;
+            input[i] = plugin->ports_[i].is_control && plugin->ports_[i].is_input;
+        }
+    }
+
+    ControlSurface(const ControlSurface&) = delete;
+    ControlSurface& operator=(const ControlSurface&) = delete;
+
+    float* values() { return reinterpret_cast<float*>(words.get() + kHeaderWords); }
+    void* data() { return words.get(); }
+    size_t bytes() const { return (kHeaderWords + count) * sizeof(int32_t); }
+
+    // Audio thread: copy what the UI changed into the plugins
+    void apply(LV2Plugin* plugin, LV2Plugin* twin) {
+        int32_t generation = __atomic_load_n(&words[0], __ATOMIC_ACQUIRE);
+        if (generation == seen && !rescan) return;
+        rescan = generation != seen;
+        seen = generation;
+
+        const float* current = values();
+        for (size_t i = 0; i < count; ++i) {
+            float value = current[i];
+            if (value == shadow[i]) continue;
+            shadow[i] = value;
+            if (!input[i]) continue;
+            if (plugin) plugin->setControlTarget(i, value);
+            if (twin) twin->setControlTarget(i, value);
+        }
+    }
+
+    const size_t count;
+    std::unique_ptr<int32_t[]> words;
+
+    // Audio thread only
+    std::unique_ptr<float[]> shadow;
+    std::unique_ptr<bool[]> input;  // port is a control input
+    int32_t seen = 0;
+    bool rescan = false;
+};
+
+// ============================================================================
+// ChainSlot - One pedal position, possibly empty
+// ============================================================================
+
+struct ChainSlot {
+    explicit ChainSlot(LV2Plugin* p = nullptr, LV2Plugin* t = nullptr) : plugin(p), twin(t) {}
+
+    ~ChainSlot() {
+        delete outgoing;
+        delete surface;
+        delete twin;
+        delete plugin;
+    }
+
+    ChainSlot(const ChainSlot&) = delete;
+    ChainSlot& operator=(const ChainSlot&) = delete;
+
+    // An empty slot still renders while it fades out what it replaced, and
+    // a throttled one until it has faded out itself
+    bool isActive() const { return (plugin || outgoing) && !bypass && (!throttled || wet > 0.0f); }
+
+    LV2Plugin* plugin;
+    LV2Plugin* twin;    // second instance of a mono plugin for the right channel
+    ControlSurface* surface = nullptr;  // owned by this slot, nullptr when empty
+    CostStats cost;     // recorded by the audio thread, read by anyone
+
+    // Audio thread only, once published
+    bool bypass = false;
+    ChainSlot* outgoing = nullptr;  // being crossfaded out, owned by this slot
+    uint32_t fade_pos = 0;          // frames of the crossfade done so far
+
+    // Audio thread only, see Watchdog
+    bool throttled = false;         // bypassed for running over the CPU budget
+    float wet = 1.0f;               // fades towards 0 while throttled, 1 otherwise
+    int64_t last_nanos = 0;         // time the slot took in its last block
+    int64_t throttled_nanos = 0;    // last_nanos when it was throttled
+    uint32_t throttle_order = 0;    // later throttles are restored first
+};
+
+// ============================================================================
+// ChainSnapshot - Immutable view of the chain handed to the audio thread
+// ============================================================================
+
+struct ChainSnapshot {
+    ~ChainSnapshot() {
+        for (auto* slot : dropped) delete slot;
+    }
+
+    std::vector<ChainSlot*> slots;
+
+    // Slots the successor no longer holds, freed together with this snapshot.
+    // Written by the control thread only, never read by the audio thread.
+    std::vector<ChainSlot*> dropped;
+};
+
+// ============================================================================
+// ControlBatch - Many port values for one slot, applied in one go
+// ============================================================================
+
+struct ControlBatch {
+    std::vector<std::pair<uint32_t, float>> values;   // port index, value
+};
+
+// ============================================================================
+// EngineCommand - Control thread -> audio thread message
+// ============================================================================
+
+struct EngineCommand {
+    enum class Type : uint32_t {
+        SetControl,     // setControlTarget(index, value) on plugin and twin
+        SetBypass,      // slot->bypass = value != 0
+        SwapChain,      // start rendering snapshot
+        SetControls,    // every value of batch, then retire it
+        SetTwin         // slot->twin = twin, retiring the one it had
+    };
+
+    Type type;
+    uint32_t index;
+    float value;
+    ChainSlot* slot;
+    ChainSnapshot* snapshot;
+    ControlBatch* batch;
+    int64_t frame = 0;  // stream frame to apply at, 0 for the next block
+    LV2Plugin* twin = nullptr;
+};
+
+// ============================================================================
+// PluginChain
+// ============================================================================
+
+class PluginChain {
+public:
+    PluginChain(size_t initial_slots = 0) {
+        for (size_t i = 0; i < initial_slots; ++i)
+            slots_.push_back(new ChainSlot());
+        current_ = latest_ = new ChainSnapshot{slots_, {}};
+    }
+
+    ~PluginChain() {
+        // Only destroyed once the streams are closed, nobody is reading.
+        // Anything already retired is freed by the reaper on its way out;
+        // commands held for a full reaper wait for it to make room.
+        drain(INT64_MAX);
+        while (has_held_ || !commands_.empty()) {
+            std::this_thread::sleep_for(std::chrono::milliseconds(1));
+            drain(INT64_MAX);
+        }
+        for (auto* slot : slots_) delete slot;
+        delete current_;
+    }
+
+    PluginChain(const PluginChain&) = delete;
+    PluginChain& operator=(const PluginChain&) = delete;
+
+    // ---------- Control threads ----------
+    // Any number of non-audio threads (UI, plugin loader) may call these, they
+    // serialize on a mutex the audio thread never touches.
+
+    size_t size() const {
+        std::lock_guard<std::mutex> lock(control_);
+        return slots_.size();
+    }
+
+    // Plugins are immutable once published, except for the port values which
+    // belong to the audio thread; use setControl() to change those. The
+    // plugin may be freed as soon as another thread replaces the slot, so
+    // only dereference it where nothing else can edit the chain; calls such
+    // as sendMidi() do their work under the lock instead.
+    LV2Plugin* plugin(size_t pos) const {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size()) return nullptr;
+        return slots_[pos]->plugin;
+    }
+
+    // Insert an empty slot before pos (pos == size() appends)
+    bool insert(size_t pos) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos > slots_.size()) return false;
+        std::vector<ChainSlot*> next = slots_;
+        auto* slot = new ChainSlot();
+        next.insert(next.begin() + pos, slot);
+        if (!publish(std::move(next))) {
+            delete slot;
+            return false;
+        }
+        return true;
+    }
+
+    // Drop the slot at pos, destroying its plugin
+    bool remove(size_t pos) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size()) return false;
+        std::vector<ChainSlot*> next = slots_;
+        next.erase(next.begin() + pos);
+        return publish(std::move(next));
+    }
+
+    bool move(size_t from, size_t to) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (from >= slots_.size() || to >= slots_.size()) return false;
+        if (from == to) return true;
+        std::vector<ChainSlot*> next = slots_;
+        ChainSlot* slot = next[from];
+        next.erase(next.begin() + from);
+        next.insert(next.begin() + to, slot);
+        return publish(std::move(next));
+    }
+
+    // Put plugin (may be nullptr) into slot pos, growing the chain with empty
+    // slots if needed. Takes ownership of plugin and of twin, an optional
+    // second instance of a mono plugin that renders the right channel. The
+    // previous occupant is crossfaded out by the audio thread and destroyed
+    // afterwards. On failure plugin and twin are destroyed.
+    bool replace(size_t pos, LV2Plugin* plugin, LV2Plugin* twin = nullptr) {
+        std::lock_guard<std::mutex> lock(control_);
+        std::vector<ChainSlot*> next = slots_;
+        while (next.size() < pos) next.push_back(new ChainSlot());
+
+        auto* slot = new ChainSlot(plugin, twin);
+        if (plugin) slot->surface = new ControlSurface(plugin);
+        if (pos < slots_.size()) {
+            slot->outgoing = slots_[pos];
+            next[pos] = slot;
+        } else {
+            next.push_back(slot);
+        }
+        if (!publish(next, slot->outgoing)) {
+            // The padding and the new slot never reached the audio thread
+            slot->outgoing = nullptr;
+            for (size_t i = slots_.size(); i < next.size(); ++i) delete next[i];
+            if (pos < slots_.size()) delete slot;
+            return false;
+        }
+        return true;
+    }
+
+    // frame: stream frame from clock().schedule() to apply the change at,
+    // 0 for the next block. The same goes for every setter below.
+    bool setControl(size_t pos, uint32_t index, float value, int64_t frame = 0) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size()) return false;
+        ChainSlot* slot = slots_[pos];
+        if (!slot->plugin || index >= slot->plugin->getPortCount()) return false;
+        return post({EngineCommand::Type::SetControl, index, value, slot, nullptr, nullptr, frame});
+    }
+
+    // Set many ports at once, e.g. a whole preset. All values reach the audio
+    // thread in one command and land in the same block. Indices the plugin
+    // does not have are skipped; returns how many values were queued.
+    size_t setControls(size_t pos, const uint32_t* indices, const float* values, size_t count,
+                       int64_t frame = 0) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size() || !slots_[pos]->plugin) return 0;
+        LV2Plugin* plugin = slots_[pos]->plugin;
+
+        auto* batch = new ControlBatch();
+        batch->values.reserve(count);
+        for (size_t i = 0; i < count; ++i) {
+            if (indices[i] < plugin->getPortCount())
+                batch->values.emplace_back(indices[i], values[i]);
+        }
+        return postBatch(slots_[pos], batch, frame);
+    }
+
+    // Same, addressing ports by symbol
+    size_t setControls(size_t pos, const char* const* symbols, const float* values, size_t count,
+                       int64_t frame = 0) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size() || !slots_[pos]->plugin) return 0;
+        LV2Plugin* plugin = slots_[pos]->plugin;
+
+        auto* batch = new ControlBatch();
+        batch->values.reserve(count);
+        for (size_t i = 0; i < count; ++i) {
+            int32_t index = plugin->findPort(symbols[i]);
+            if (index >= 0)
+                batch->values.emplace_back(index, values[i]);
+        }
+        return postBatch(slots_[pos], batch, frame);
+    }
+
+    // Queue a raw MIDI message for the plugin in slot pos and its twin, at
+    // the stream frame given, -1 for the next block. The lock keeps the slot
+    // in the chain, and so its plugins alive, for the whole call; it also
+    // makes this the only writer of their atom inputs. False for an empty
+    // slot or a plugin without a MIDI input.
+    bool sendMidi(size_t pos, const uint8_t* data, uint32_t size, int64_t frame = -1) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size() || !slots_[pos]->plugin) return false;
+        ChainSlot* slot = slots_[pos];
+        if (!slot->plugin->sendMidi(data, size, frame)) return false;
+        if (slot->twin) slot->twin->sendMidi(data, size, frame);
+        return true;
+    }
+
+    // Shared-memory controls of the plugin in slot pos, nullptr for an empty
+    // slot. Freed with the slot, by the reaper, once the plugin is replaced
+    // or removed: whoever holds it must let go before asking for either.
+    ControlSurface* surface(size_t pos) const {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size()) return nullptr;
+        return slots_[pos]->surface;
+    }
+
+    // DSP cost of the slot at pos since it was filled or last reset; false
+    // for an empty slot
+    bool cost(size_t pos, CostSnapshot& snapshot) const {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size() || !slots_[pos]->plugin) return false;
+        snapshot = slots_[pos]->cost.snapshot();
+        return true;
+    }
+
+    void resetCosts() {
+        std::lock_guard<std::mutex> lock(control_);
+        for (auto* slot : slots_) slot->cost.reset();
+    }
+
+    bool setBypass(size_t pos, bool bypass, int64_t frame = 0) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (pos >= slots_.size()) return false;
+        return post({EngineCommand::Type::SetBypass, 0, bypass ? 1.0f : 0.0f, slots_[pos], nullptr,
+                     nullptr, frame});
+    }
+
+    // Give every plugin in the chain the twin make(plugin) returns, if it has
+    // none, or take every twin away when stereo is false. Only while
+    // detached: make may take a while, and the slots' current twins are
+    // read on this thread.
+    template <typename Make>
+    bool setTwins(bool stereo, Make make) {
+        std::lock_guard<std::mutex> lock(control_);
+        if (attached_.load()) return false;
+        for (auto* slot : slots_) {
+            if (!slot->plugin || (slot->twin != nullptr) == stereo) continue;
+            LV2Plugin* twin = stereo ? make(slot->plugin) : nullptr;
+            if (stereo && !twin) continue;
+            if (!post({EngineCommand::Type::SetTwin, 0, 0.0f, slot, nullptr, nullptr, 0, twin})) {
+                delete twin;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // While detached there is no audio thread, commands are applied straight
+    // away on the control thread instead of waiting for a callback.
+    void attach() {
+        std::lock_guard<std::mutex> lock(control_);
+        attached_.store(true);
+    }
+
+    void detach() {
+        std::lock_guard<std::mutex> lock(control_);
+        attached_.store(false);
+        clock_.stop();
+        drain(INT64_MAX);
+    }
+
+    // Timestamps control events, anchored by the audio callback
+    StreamClock& clock() { return clock_; }
+
+    // ---------- Audio thread ----------
+
+    // Call once at the start of every block of numFrames. Takes every
+    // command due before the block ends and returns the snapshot to render.
+    // Those due inside the block for a slot that can split it are left for
+    // applyEvents(), the rest are applied now. Wait-free.
+    const ChainSnapshot* acquire(int32_t numFrames) {
+        epoch_.fetch_add(1, std::memory_order_acq_rel);
+        drain(position_ + numFrames, true);
+        for (auto* slot : current_->slots) {
+            if (slot->surface) slot->surface->apply(slot->plugin, slot->twin);
+            setStreamFrame(slot);
+        }
+        block_frames_ = numFrames;
+        return current_;
+    }
+
+    // Call once the block is rendered; nothing from it is touched afterwards.
+    // Changes for slots that did not render are applied now.
+    void release() {
+        for (size_t i = 0; i < num_events_; ++i) apply(events_[i].cmd);
+        num_events_ = 0;
+        event_batches_ = 0;
+        position_ += block_frames_;
+        epoch_.fetch_add(1, std::memory_order_acq_rel);
+    }
+
+    // Stream frame the next block starts at. Audio thread only.
+    int64_t position() const { return position_; }
+
+    // Whether changes are left for slot in this block
+    bool hasEvents(const ChainSlot* slot) const {
+        for (size_t i = 0; i < num_events_; ++i)
+            if (events_[i].cmd.slot == slot) return true;
+        return false;
+    }
+
+    // Frame within the block of the next change left for slot, UINT32_MAX
+    // if there is none. Render the slot up to there, then applyEvents().
+    uint32_t nextEvent(const ChainSlot* slot) const {
+        for (size_t i = 0; i < num_events_; ++i)
+            if (events_[i].cmd.slot == slot) return events_[i].offset;
+        return UINT32_MAX;
+    }
+
+    // Apply the changes left for slot at or before offset, in order
+    void applyEvents(const ChainSlot* slot, uint32_t offset) {
+        size_t kept = 0;
+        for (size_t i = 0; i < num_events_; ++i) {
+            BlockEvent& event = events_[i];
+            if (event.cmd.slot == slot && event.offset <= offset) {
+                if (event.cmd.type == EngineCommand::Type::SetControls) event_batches_--;
+                apply(event.cmd);
+            } else {
+                events_[kept++] = event;
+            }
+        }
+        num_events_ = kept;
+    }
+
+    // Hand a slot the audio thread is done with (a finished crossfade) to
+    // the reaper. Safe mid-block, it is freed after release(). False if the
+    // reaper is full; keep the slot and try again next block.
+    bool retire(ChainSlot* slot) {
+        // Room stays reserved for the batches still left in events_
+        if (!reaper_.ready(event_batches_ + 1)) return false;
+        return reaper_.retire(slot);
+    }
+
+private:
+    // Apply commands in order up to the first one due at or after until,
+    // which waits in held_ for a later block. So does one that would retire
+    // something while the reaper has no room, counting the batches already
+    // left in events_.
+    //
+    // split: until is the end of the block starting at position_; a slot
+    // command due after its start, or following one that is, goes to events_
+    // when the slot can split the block. Commands for one slot keep their
+    // order, so a later one never lands before an earlier one.
+    void drain(int64_t until, bool split = false) {
+        EngineCommand cmd;
+        while (has_held_ || commands_.pop(cmd)) {
+            if (has_held_) {
+                cmd = held_;
+                has_held_ = false;
+            }
+            if (cmd.frame >= until || (retires(cmd) && !reaper_.ready(event_batches_ + 1))) {
+                held_ = cmd;
+                has_held_ = true;
+                return;
+            }
+
+            if (split && splits(cmd)) {
+                uint32_t offset = (uint32_t) std::max<int64_t>(cmd.frame - position_, 0);
+                for (size_t i = 0; i < num_events_; ++i)
+                    if (events_[i].cmd.slot == cmd.slot) offset = std::max(offset, events_[i].offset);
+                if (offset > 0 || hasEvents(cmd.slot)) {
+                    if (num_events_ == kMaxBlockEvents) {
+                        held_ = cmd;
+                        has_held_ = true;
+                        return;
+                    }
+                    events_[num_events_++] = {offset, cmd};
+                    if (cmd.type == EngineCommand::Type::SetControls) event_batches_++;
+                    continue;
+                }
+            }
+
+            apply(cmd);
+        }
+    }
+
+    void apply(const EngineCommand& cmd) {
+        switch (cmd.type) {
+            case EngineCommand::Type::SetControl:
+                if (cmd.slot->plugin)
+                    cmd.slot->plugin->setControlTarget(cmd.index, cmd.value);
+                if (cmd.slot->twin)
+                    cmd.slot->twin->setControlTarget(cmd.index, cmd.value);
+                break;
+            case EngineCommand::Type::SetBypass:
+                cmd.slot->bypass = cmd.value != 0.0f;
+                break;
+            case EngineCommand::Type::SwapChain: {
+                ChainSnapshot* old = current_;
+                current_ = cmd.snapshot;
+                reaper_.retire(old);
+                break;
+            }
+            case EngineCommand::Type::SetControls:
+                for (auto& v : cmd.batch->values) {
+                    if (cmd.slot->plugin)
+                        cmd.slot->plugin->setControlTarget(v.first, v.second);
+                    if (cmd.slot->twin)
+                        cmd.slot->twin->setControlTarget(v.first, v.second);
+                }
+                reaper_.retire(cmd.batch);
+                break;
+            case EngineCommand::Type::SetTwin:
+                reaper_.retire(cmd.slot->twin);
+                cmd.slot->twin = cmd.twin;
+                break;
+        }
+    }
+
+    // Slot changes a plugin that takes blocks of any length can split at
+    static bool splits(const EngineCommand& cmd) {
+        return (cmd.type == EngineCommand::Type::SetControl
+                || cmd.type == EngineCommand::Type::SetControls
+                || cmd.type == EngineCommand::Type::SetBypass)
+               && cmd.slot->plugin && !cmd.slot->plugin->hasFixedBlockLength();
+    }
+
+    static bool retires(const EngineCommand& cmd) {
+        return cmd.type == EngineCommand::Type::SwapChain
+               || cmd.type == EngineCommand::Type::SetControls
+               || cmd.type == EngineCommand::Type::SetTwin;
+    }
+
+    // adopted: a slot leaving the list that another slot now owns. On
+    // failure nothing changes.
+    bool publish(std::vector<ChainSlot*> next, const ChainSlot* adopted = nullptr) {
+        // Dropped slots go on the outgoing snapshot before it can be retired
+        const size_t dropped = latest_->dropped.size();
+        for (auto* slot : slots_) {
+            if (slot == adopted) continue;
+            if (std::find(next.begin(), next.end(), slot) == next.end())
+                latest_->dropped.push_back(slot);
+        }
+
+        auto* snapshot = new ChainSnapshot{next, {}};
+        if (!post({EngineCommand::Type::SwapChain, 0, 0.0f, nullptr, snapshot, nullptr})) {
+            latest_->dropped.resize(dropped);
+            delete snapshot;
+            return false;
+        }
+        latest_ = snapshot;
+        slots_ = std::move(next);
+        return true;
+    }
+
+    size_t postBatch(ChainSlot* slot, ControlBatch* batch, int64_t frame) {
+        size_t count = batch->values.size();
+        if (count == 0) {
+            delete batch;
+            return 0;
+        }
+        if (!post({EngineCommand::Type::SetControls, 0, 0.0f, slot, nullptr, batch, frame})) {
+            delete batch;
+            return 0;
+        }
+        return count;
+    }
+
+    // False if the queue stayed full for kPostTimeout
+    bool post(const EngineCommand& cmd) {
+        const auto deadline = std::chrono::steady_clock::now() + kPostTimeout;
+        while (!commands_.push(cmd)) {
+            // Full: either nobody is consuming, or a burst of knob moves is
+            // waiting for the next callback. A callback that stopped without
+            // a detach() never comes back for them.
+            if (!attached_.load()) drain(INT64_MAX);
+            if (commands_.canPush()) continue;
+            if (std::chrono::steady_clock::now() >= deadline) return false;
+            std::this_thread::sleep_for(std::chrono::milliseconds(1));
+        }
+
+        if (!attached_.load()) drain(INT64_MAX);
+        return true;
+    }
+
+    // Lets each plugin place stamped atom messages within the block
+    void setStreamFrame(const ChainSlot* slot) {
+        for (; slot; slot = slot->outgoing) {
+            if (slot->plugin) slot->plugin->setStreamFrame(position_);
+            if (slot->twin) slot->twin->setStreamFrame(position_);
+        }
+    }
+
+    // A few dozen blocks at any buffer size a device would use
+    static constexpr std::chrono::milliseconds kPostTimeout{200};
+
+    // Control threads
+    mutable std::mutex control_;
+    std::vector<ChainSlot*> slots_;
+    ChainSnapshot* latest_ = nullptr;
+    std::atomic<bool> attached_{false};
+
+    // Audio thread
+    ChainSnapshot* current_ = nullptr;
+    std::atomic<uint64_t> epoch_{0};
+    int64_t position_ = 0;      // keeps counting across stream restarts
+    int32_t block_frames_ = 0;
+    EngineCommand held_{};
+    bool has_held_ = false;
+
+    // Changes due inside the current block, for the pass to split it at.
+    // More than this in one block wait for the next.
+    struct BlockEvent {
+        uint32_t offset;    // frames into the block
+        EngineCommand cmd;
+    };
+    static constexpr size_t kMaxBlockEvents = 64;
+    BlockEvent events_[kMaxBlockEvents];
+    size_t num_events_ = 0;
+    size_t event_batches_ = 0;  // SetControls among them, retired once applied
+    StreamClock clock_;
+
+    CommandQueue<EngineCommand> commands_{1024};
+    PluginReaper reaper_{&epoch_};
+};
@@ -0,0 +1,107 @@
+/*
+ * PluginReaper.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Deferred destruction of objects the audio thread has let go of.
+ *
+ * Tearing down an LV2 instance means deactivate(), lilv_instance_free(),
+ * dlclose() and joining the plugin's worker thread, none of which may run on
+ * the audio thread, and none of which may run while the callback could still
+ * be touching the instance. The audio thread hands such objects to retire(),
+ * which is wait-free, and a background thread destroys them once the
+ * callback has passed a quiescent point.
+ *
+ * Quiescence is tracked with an epoch counter the callback bumps on entry and
+ * exit (odd while inside a block). An object retired at epoch e is safe to
+ * free once the epoch has moved past e.
+ */
+
+#pragma once
+
+#include "CommandQueue.hpp"
+
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <thread>
+#include <pthread.h>
+#include <semaphore.h>
+
+class PluginReaper {
+public:
+    explicit PluginReaper(const std::atomic<uint64_t>* epoch) : epoch_(epoch) {
+        sem_init(&wake_, 0, 0);
+        thread_ = std::thread(&PluginReaper::run, this);
+    }
+
+    ~PluginReaper() {
+        running_.store(false);
+        sem_post(&wake_);
+        if (thread_.joinable()) thread_.join();
+
+        // No audio thread left by now, free whatever is still queued
+        Retired r;
+        while (queue_.pop(r)) r.destroy(r.object);
+        sem_destroy(&wake_);
+    }
+
+    PluginReaper(const PluginReaper&) = delete;
+    PluginReaper& operator=(const PluginReaper&) = delete;
+
+    // Single producer: the audio thread, or the control thread while no
+    // stream is running. RT-safe, never blocks or allocates.
+    template <typename T>
+    bool retire(T* object) {
+        if (!object) return true;
+        Retired r { [](void* p) { delete static_cast<T*>(p); }, object,
+                    epoch_->load(std::memory_order_acquire) };
+        if (!queue_.push(r)) return false;
+        sem_post(&wake_);
+        return true;
+    }
+
+    // Producer side: whether the next count retire() calls would succeed.
+    // When they would not, the producer keeps the object and tries again on
+    // a later block.
+    bool ready(size_t count = 1) const {
+        return queue_.canPush(count);
+    }
+
+private:
+    struct Retired {
+        void (*destroy)(void*);
+        void* object;
+        uint64_t epoch;
+    };
+
+    void run() {
+        pthread_setname_np(pthread_self(), "lv2-reaper");
+
+        while (true) {
+            sem_wait(&wake_);
+
+            Retired r;
+            while (queue_.pop(r)) {
+                waitForQuiescence(r.epoch);
+                r.destroy(r.object);
+            }
+
+            if (!running_.load()) break;
+        }
+    }
+
+    // Retired outside a block (even epoch) is already safe, inside a block
+    // wait for the callback to leave it
+    void waitForQuiescence(uint64_t retired_at) {
+        if ((retired_at & 1) == 0) return;
+        while (epoch_->load(std::memory_order_acquire) == retired_at)
+            std::this_thread::sleep_for(std::chrono::microseconds(500));
+    }
+
+    const std::atomic<uint64_t>* epoch_;
+    CommandQueue<Retired> queue_{1024};
+    sem_t wake_;
+    std::atomic<bool> running_{true};
+    std::thread thread_;
+};
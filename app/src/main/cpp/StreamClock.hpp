@@ -0,0 +1,92 @@
+/*
+ * StreamClock.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Maps wall-clock time on a control thread to a frame position in the
+ * audio stream, so control events can be timestamped when they happen
+ * rather than applied whenever the next callback comes around.
+ *
+ * The audio thread anchors the clock at the start of every callback: the
+ * stream frame the callback starts at, the time it started and its burst
+ * size. A control thread extrapolates from the latest anchor and schedules
+ * the event one burst later, where it is sure to fall into a callback that
+ * has not run yet. Every event is thus delayed by the same amount instead of
+ * by however much of the current burst happened to be left, which is the
+ * jitter this removes.
+ *
+ * The anchor is published with a sequence lock, so the audio thread never
+ * waits and readers retry in the rare case they overlap a write.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <ctime>
+
+class StreamClock {
+public:
+    // Not for the audio thread
+    void setSampleRate(int32_t sampleRate) {
+        sample_rate_.store(sampleRate, std::memory_order_relaxed);
+    }
+
+    // Audio thread, at the start of every callback
+    void anchor(int64_t frame, int32_t burst) {
+        const uint32_t seq = seq_.load(std::memory_order_relaxed);
+        seq_.store(seq + 1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        frame_.store(frame, std::memory_order_relaxed);
+        nanos_.store(monotonicNanos(), std::memory_order_relaxed);
+        burst_.store(std::max(burst, 1), std::memory_order_relaxed);
+        seq_.store(seq + 2, std::memory_order_release);
+    }
+
+    // The stream stopped, schedule() applies events immediately until the
+    // next anchor
+    void stop() {
+        const uint32_t seq = seq_.load(std::memory_order_relaxed);
+        seq_.store(seq + 1, std::memory_order_relaxed);
+        std::atomic_thread_fence(std::memory_order_release);
+        nanos_.store(0, std::memory_order_relaxed);
+        seq_.store(seq + 2, std::memory_order_release);
+    }
+
+    // Any thread: the stream frame at which an event happening now should
+    // take effect, 0 (as soon as possible) while no stream is running
+    int64_t schedule() const {
+        int64_t frame, nanos;
+        int32_t burst;
+        uint32_t seq;
+        do {
+            seq = seq_.load(std::memory_order_acquire);
+            frame = frame_.load(std::memory_order_relaxed);
+            nanos = nanos_.load(std::memory_order_relaxed);
+            burst = burst_.load(std::memory_order_relaxed);
+            std::atomic_thread_fence(std::memory_order_acquire);
+        } while ((seq & 1) || seq != seq_.load(std::memory_order_relaxed));
+
+        if (nanos == 0) return 0;
+
+        // A late callback must not push events further out than one burst
+        int64_t elapsed = (monotonicNanos() - nanos)
+                          * sample_rate_.load(std::memory_order_relaxed) / 1000000000;
+        elapsed = std::min<int64_t>(std::max<int64_t>(elapsed, 0), burst);
+        return frame + elapsed + burst;
+    }
+
+private:
+    static int64_t monotonicNanos() {
+        timespec ts;
+        clock_gettime(CLOCK_MONOTONIC, &ts);
+        return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+    }
+
+    std::atomic<uint32_t> seq_{0};
+    std::atomic<int64_t> frame_{0};
+    std::atomic<int64_t> nanos_{0};
+    std::atomic<int32_t> burst_{1};
+    std::atomic<int32_t> sample_rate_{48000};
+};
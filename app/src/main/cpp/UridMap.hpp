@@ -0,0 +1,137 @@
+/*
+ * UridMap.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * Process-wide URID registry behind LV2_URID_Map / LV2_URID_Unmap.
+ *
+ * Every plugin instance shares it, so a URI maps to the same URID
+ * everywhere and atoms can be passed from one plugin to another unchanged.
+ *
+ * Lookups of known URIs are lock-free and allocation-free, so plugins may
+ * map from any thread, the audio thread included. The URI → URID side is an
+ * open-addressing hash table whose entries are written once and never move;
+ * the URID → URI side is an append-only array. Only a URI seen for the first
+ * time takes a mutex, to copy the string and claim the next id.
+ */
+
+#pragma once
+
+#include <lv2/urid/urid.h>
+
+#include <atomic>
+#include <cstdint>
+#include <cstring>
+#include <mutex>
+
+class UridMap {
+public:
+    // Distinct URIs the registry can hold; map() returns 0 once full
+    static constexpr uint32_t kCapacity = 4096;
+
+    // Shared by every plugin in the process
+    static UridMap& shared() {
+        static UridMap map;
+        return map;
+    }
+
+    UridMap() {
+        map_.handle = this;
+        map_.map = map;
+        unmap_.handle = this;
+        unmap_.unmap = unmap;
+    }
+
+    ~UridMap() {
+        for (auto& uri : uris_) delete[] uri.load(std::memory_order_relaxed);
+    }
+
+    UridMap(const UridMap&) = delete;
+    UridMap& operator=(const UridMap&) = delete;
+
+    LV2_URID_Map* mapFeature() { return &map_; }
+    LV2_URID_Unmap* unmapFeature() { return &unmap_; }
+
+    LV2_URID map(const char* uri) {
+        if (!uri) return 0;
+        const uint32_t hash = hashOf(uri);
+
+        LV2_URID id = find(uri, hash);
+        if (id) return id;
+
+        std::lock_guard<std::mutex> lock(insert_);
+        return insert(uri, hash);
+    }
+
+    const char* unmap(LV2_URID id) const {
+        if (id == 0 || id > kCapacity) return nullptr;
+        return uris_[id - 1].load(std::memory_order_acquire);
+    }
+
+    static LV2_URID map(LV2_URID_Map_Handle handle, const char* uri) {
+        return static_cast<UridMap*>(handle)->map(uri);
+    }
+
+    static const char* unmap(LV2_URID_Unmap_Handle handle, LV2_URID id) {
+        return static_cast<UridMap*>(handle)->unmap(id);
+    }
+
+private:
+    // Twice the capacity keeps probe sequences short even when full
+    static constexpr uint32_t kSlots = kCapacity * 2;
+
+    struct Slot {
+        std::atomic<const char*> uri{nullptr};   // published last
+        std::atomic<LV2_URID> id{0};
+    };
+
+    // FNV-1a
+    static uint32_t hashOf(const char* uri) {
+        uint32_t h = 2166136261u;
+        for (const char* c = uri; *c; ++c) h = (h ^ (uint8_t) *c) * 16777619u;
+        return h;
+    }
+
+    LV2_URID find(const char* uri, uint32_t hash) const {
+        for (uint32_t n = 0; n < kSlots; ++n) {
+            const Slot& slot = slots_[(hash + n) & (kSlots - 1)];
+            const char* key = slot.uri.load(std::memory_order_acquire);
+            if (!key) return 0;
+            if (strcmp(key, uri) == 0) return slot.id.load(std::memory_order_relaxed);
+        }
+        return 0;
+    }
+
+    // Under insert_: readers may be probing concurrently
+    LV2_URID insert(const char* uri, uint32_t hash) {
+        for (uint32_t n = 0; n < kSlots; ++n) {
+            Slot& slot = slots_[(hash + n) & (kSlots - 1)];
+            const char* key = slot.uri.load(std::memory_order_acquire);
+            if (key) {
+                if (strcmp(key, uri) == 0) return slot.id.load(std::memory_order_relaxed);
+                continue;
+            }
+
+            if (count_ == kCapacity) return 0;
+
+            const size_t length = strlen(uri) + 1;
+            char* copy = new char[length];
+            memcpy(copy, uri, length);
+
+            const LV2_URID id = ++count_;
+            uris_[id - 1].store(copy, std::memory_order_release);
+            slot.id.store(id, std::memory_order_relaxed);
+            slot.uri.store(copy, std::memory_order_release);
+            return id;
+        }
+        return 0;
+    }
+
+    Slot slots_[kSlots];
+    std::atomic<const char*> uris_[kCapacity] = {};
+    uint32_t count_ = 0;
+    std::mutex insert_;
+
+    LV2_URID_Map map_;
+    LV2_URID_Unmap unmap_;
+};
@@ -0,0 +1,143 @@
+/*
+ * Watchdog.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * CPU budget watchdog for the effect chain.
+ *
+ * After every block the audio thread reports how long the chain took. When
+ * that stays above a fraction of the block's duration for a number of
+ * blocks in a row, the most expensive slot is throttled: the audio thread
+ * fades it out and then stops running it, as if bypassed. Once the chain has
+ * run comfortably below the budget for much longer, and the slot's last
+ * known cost would still fit, the slot most recently throttled is faded back
+ * in. The gap between the two levels and the longer wait to restore keep it
+ * from flapping.
+ *
+ * Decisions are posted to a wait-free queue for the UI to poll, so the audio
+ * thread never calls into Java. Nothing here allocates or locks on the audio
+ * thread.
+ */
+
+#pragma once
+
+#include "CommandQueue.hpp"
+#include "PluginChain.hpp"
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+
+class Watchdog {
+public:
+    // Defaults: act after 16 blocks in a row above 85% of the block period
+    static constexpr float kDefaultThreshold = 0.85f;
+    static constexpr int32_t kDefaultBlocks = 16;
+
+    // A slot comes back only below this fraction of the threshold, after
+    // kResumeFactor times as many blocks as it took to throttle it
+    static constexpr float kResumeRatio = 0.6f;
+    static constexpr int32_t kResumeFactor = 8;
+
+    struct Event {
+        enum Type : int32_t { Throttled, Restored };
+        Type type;
+        int32_t slot;       // position in the chain
+        float load;         // chain time / block duration when it happened
+    };
+
+    // Any thread. threshold <= 0 turns the watchdog off.
+    void configure(float threshold, int32_t blocks) {
+        threshold_.store(threshold, std::memory_order_relaxed);
+        blocks_.store(std::max(blocks, 1), std::memory_order_relaxed);
+    }
+
+    float threshold() const { return threshold_.load(std::memory_order_relaxed); }
+    int32_t blocks() const { return blocks_.load(std::memory_order_relaxed); }
+
+    // One consumer thread (the UI). False when nothing happened.
+    bool poll(Event& event) { return events_.pop(event); }
+
+    // Audio thread, after each block. settleBlocks is how long a fade takes;
+    // no further decision is made until it is over.
+    void check(const ChainSnapshot* snapshot, int64_t chainNanos, int64_t budgetNanos,
+               int32_t settleBlocks) {
+        const float threshold = threshold_.load(std::memory_order_relaxed);
+        if (threshold <= 0.0f || !snapshot || budgetNanos <= 0) {
+            over_ = under_ = 0;
+            return;
+        }
+        if (settle_ > 0) {
+            settle_--;
+            return;
+        }
+
+        const int32_t blocks = blocks_.load(std::memory_order_relaxed);
+        const float load = (float) chainNanos / budgetNanos;
+
+        if (load > threshold) {
+            under_ = 0;
+            if (++over_ < blocks) return;
+            over_ = 0;
+            throttle(snapshot, load, settleBlocks);
+        } else if (load < threshold * kResumeRatio) {
+            over_ = 0;
+            if (++under_ < blocks * kResumeFactor) return;
+            under_ = 0;
+            restore(snapshot, chainNanos, threshold * kResumeRatio * budgetNanos, load,
+                    settleBlocks);
+        } else {
+            over_ = under_ = 0;
+        }
+    }
+
+private:
+    void throttle(const ChainSnapshot* snapshot, float load, int32_t settleBlocks) {
+        ChainSlot* worst = nullptr;
+        int32_t position = -1;
+        for (size_t i = 0; i < snapshot->slots.size(); ++i) {
+            ChainSlot* slot = snapshot->slots[i];
+            if (!slot->isActive() || slot->throttled) continue;
+            if (!worst || slot->last_nanos > worst->last_nanos) {
+                worst = slot;
+                position = (int32_t) i;
+            }
+        }
+        if (!worst) return;
+
+        worst->throttled = true;
+        worst->throttled_nanos = worst->last_nanos;
+        worst->throttle_order = ++order_;
+        settle_ = settleBlocks;
+        events_.push({Event::Throttled, position, load});
+    }
+
+    void restore(const ChainSnapshot* snapshot, int64_t chainNanos, float limitNanos,
+                 float load, int32_t settleBlocks) {
+        ChainSlot* latest = nullptr;
+        int32_t position = -1;
+        for (size_t i = 0; i < snapshot->slots.size(); ++i) {
+            ChainSlot* slot = snapshot->slots[i];
+            if (!slot->throttled) continue;
+            if (!latest || slot->throttle_order > latest->throttle_order) {
+                latest = slot;
+                position = (int32_t) i;
+            }
+        }
+        if (!latest || chainNanos + latest->throttled_nanos > limitNanos) return;
+
+        latest->throttled = false;
+        settle_ = settleBlocks;
+        events_.push({Event::Restored, position, load});
+    }
+
+    std::atomic<float> threshold_{kDefaultThreshold};
+    std::atomic<int32_t> blocks_{kDefaultBlocks};
+    CommandQueue<Event> events_{64};
+
+    // Audio thread only
+    int32_t over_ = 0;
+    int32_t under_ = 0;
+    int32_t settle_ = 0;
+    uint32_t order_ = 0;
+};
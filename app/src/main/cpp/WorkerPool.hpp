@@ -0,0 +1,137 @@
+/*
+ * WorkerPool.hpp
+ *
+ * SPDX-License-Identifier:  BSD-3-Clause
+ *
+ * One small pool of threads running LV2 worker jobs for every plugin
+ * instance in the process, instead of a polling thread per plugin.
+ *
+ * A plugin schedules work from the audio thread by writing the request into
+ * its own ringbuffer and calling notify(), which only posts a semaphore. Each
+ * post wakes one pool thread. Threads pick the next client with a pending
+ * request round-robin, so one plugin loading a large file cannot starve the
+ * others, and never run two jobs of the same client at once, as the LV2
+ * worker extension requires.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <condition_variable>
+#include <cstdint>
+#include <mutex>
+#include <thread>
+#include <vector>
+#include <pthread.h>
+#include <semaphore.h>
+
+class WorkerPool {
+public:
+    static constexpr size_t kMaxThreads = 2;
+
+    // A queue of jobs belonging to one plugin instance
+    class Client {
+    public:
+        virtual ~Client() = default;
+
+        // Whether a complete request is queued. Called by pool threads.
+        virtual bool hasWork() const = 0;
+
+        // Run one queued request; scratch is a buffer the calling thread
+        // reuses for every job. Never called concurrently for one client.
+        virtual void runOne(std::vector<uint8_t>& scratch) = 0;
+
+    private:
+        friend class WorkerPool;
+        bool busy_ = false;   // guarded by the pool's mutex
+    };
+
+    // Shared by every plugin in the process
+    static WorkerPool& shared() {
+        static WorkerPool pool(std::max<size_t>(1, std::min<size_t>(kMaxThreads,
+                                   std::thread::hardware_concurrency())));
+        return pool;
+    }
+
+    explicit WorkerPool(size_t threads) {
+        sem_init(&wake_, 0, 0);
+        for (size_t i = 0; i < threads; ++i)
+            threads_.emplace_back(&WorkerPool::run, this);
+    }
+
+    ~WorkerPool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex_);
+            running_ = false;
+        }
+        for (size_t i = 0; i < threads_.size(); ++i) sem_post(&wake_);
+        for (auto& t : threads_) t.join();
+        sem_destroy(&wake_);
+    }
+
+    WorkerPool(const WorkerPool&) = delete;
+    WorkerPool& operator=(const WorkerPool&) = delete;
+
+    void add(Client* client) {
+        std::lock_guard<std::mutex> lock(mutex_);
+        clients_.push_back(client);
+    }
+
+    // Blocks until a job of this client that is already running has finished
+    void remove(Client* client) {
+        std::unique_lock<std::mutex> lock(mutex_);
+        idle_.wait(lock, [client] { return !client->busy_; });
+        clients_.erase(std::remove(clients_.begin(), clients_.end(), client), clients_.end());
+    }
+
+    // A request was queued. RT-safe: only posts the semaphore.
+    void notify() {
+        sem_post(&wake_);
+    }
+
+private:
+    void run() {
+        pthread_setname_np(pthread_self(), "lv2-worker");
+        std::vector<uint8_t> scratch;
+
+        while (true) {
+            sem_wait(&wake_);
+
+            // Keep going while there is work, a client that was busy when
+            // its request was posted is picked up here on the next pass
+            while (Client* client = claim()) {
+                client->runOne(scratch);
+
+                std::lock_guard<std::mutex> lock(mutex_);
+                client->busy_ = false;
+                idle_.notify_all();
+            }
+
+            std::lock_guard<std::mutex> lock(mutex_);
+            if (!running_) break;
+        }
+    }
+
+    // Next idle client with work, starting after the one served last
+    Client* claim() {
+        std::lock_guard<std::mutex> lock(mutex_);
+        if (!running_) return nullptr;
+        for (size_t n = 0; n < clients_.size(); ++n) {
+            Client* client = clients_[(next_ + n) % clients_.size()];
+            if (client->busy_ || !client->hasWork()) continue;
+            client->busy_ = true;
+            next_ = (next_ + n + 1) % clients_.size();
+            return client;
+        }
+        return nullptr;
+    }
+
+    std::mutex mutex_;
+    std::condition_variable idle_;
+    std::vector<Client*> clients_;
+    size_t next_ = 0;
+    bool running_ = true;
+
+    sem_t wake_;
+    std::vector<std::thread> threads_;
+};
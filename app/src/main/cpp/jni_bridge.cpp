@@ -124,6 +124,173 @@ Java_org_acoustixaudio_opiqo_multi_AudioEngine_setAPI(JNIEnv *env,
     return engine->setAudioApi(audioApi) ? JNI_TRUE : JNI_FALSE;
 }
 
+JNIEXPORT jboolean JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setMonoInput(JNIEnv *env,
+                                                            jclass type,
+                                                            jint channel) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return JNI_FALSE;
+    }
+
+    return engine->setMonoInput(channel) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setBlockSize(JNIEnv *env,
+                                                            jclass type,
+                                                            jint frames) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return JNI_FALSE;
+    }
+
+    return engine->setBlockSize(frames) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setSmoothingTime(JNIEnv *env,
+                                                                jclass type,
+                                                                jfloat millis) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return;
+    }
+
+    engine->setSmoothingTime(millis);
+}
+
+JNIEXPORT jdoubleArray JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_getStats(JNIEnv *env,
+                                                        jclass type) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return nullptr;
+    }
+
+    double stats[LiveEffectEngine::kStatCount];
+    engine->getStats(stats);
+
+    jdoubleArray result = env->NewDoubleArray(LiveEffectEngine::kStatCount);
+    if (result != nullptr)
+        env->SetDoubleArrayRegion(result, 0, LiveEffectEngine::kStatCount, stats);
+    return result;
+}
+
+JNIEXPORT jdoubleArray JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_getPluginStats(JNIEnv *env,
+                                                              jclass type,
+                                                              jint plugin) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return nullptr;
+    }
+
+    // Polled by the UI, an empty slot is not an error
+    double stats[LiveEffectEngine::kSlotStatCount];
+    if (plugin < 1 || !engine->getSlotStats(plugin - 1, stats))
+        return nullptr;
+
+    jdoubleArray result = env->NewDoubleArray(LiveEffectEngine::kSlotStatCount);
+    if (result != nullptr)
+        env->SetDoubleArrayRegion(result, 0, LiveEffectEngine::kSlotStatCount, stats);
+    return result;
+}
+
+JNIEXPORT void JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setWatchdog(JNIEnv *env,
+                                                           jclass type,
+                                                           jfloat threshold,
+                                                           jint blocks) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return;
+    }
+
+    engine->setWatchdog(threshold, blocks);
+}
+
+JNIEXPORT jintArray JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_pollWatchdog(JNIEnv *env,
+                                                            jclass type) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return nullptr;
+    }
+
+    Watchdog::Event event;
+    if (!engine->pollWatchdog(event)) return nullptr;
+
+    // Type, 1-based plugin position, load in percent of the block period
+    jint values[3] = {event.type, event.slot + 1, (jint) (event.load * 100.0f + 0.5f)};
+    jintArray result = env->NewIntArray(3);
+    if (result != nullptr)
+        env->SetIntArrayRegion(result, 0, 3, values);
+    return result;
+}
+
+JNIEXPORT jdoubleArray JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_measureLatency(JNIEnv *env,
+                                                              jclass type) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return nullptr;
+    }
+
+    double latency[LiveEffectEngine::kLatencyCount];
+    if (!engine->measureLatency(latency)) {
+        LOGE("Latency measurement failed, is the effect on and the output looped back?");
+        return nullptr;
+    }
+
+    jdoubleArray result = env->NewDoubleArray(LiveEffectEngine::kLatencyCount);
+    if (result != nullptr)
+        env->SetDoubleArrayRegion(result, 0, LiveEffectEngine::kLatencyCount, latency);
+    return result;
+}
+
+JNIEXPORT void JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_resetStats(JNIEnv *env,
+                                                          jclass type) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return;
+    }
+
+    engine->resetStats();
+}
+
+JNIEXPORT jint JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_getBlockSize(JNIEnv *env,
+                                                            jclass type) {
+    if (engine == nullptr) {
+        LOGE(
+            "Engine is null, you must call createEngine "
+            "before calling this method");
+        return 0;
+    }
+
+    return engine->getBlockSize();
+}
+
 JNIEXPORT jboolean JNICALL
 Java_org_acoustixaudio_opiqo_multi_AudioEngine_isAAudioRecommended(
     JNIEnv *env, jclass type) {
@@ -180,15 +347,18 @@ Java_org_acoustixaudio_opiqo_multi_AudioEngine_test(JNIEnv *env, jclass clazz, j
 
     }
 
-    LV2Plugin * lv2Plugin = new LV2Plugin(world, "http://guitarix.sourceforge.net/plugins/gx_sloopyblue_#_sloopyblue_", 48000., 4096);
-    lv2Plugin->initialize();
-    lv2Plugin->start();
-    engine -> plugin1 = lv2Plugin ;
+    // Built the same way as any added pedal
+    LV2Plugin * lv2Plugin = engine->createPlugin("http://guitarix.sourceforge.net/plugins/gx_sloopyblue_#_sloopyblue_");
+    if (lv2Plugin == nullptr) {
+        LOGE("[test] Failed to create plugin");
+        return ;
+    }
     lv2Plugin->getControl("GAIN")->setValue(0.f);
     lv2Plugin->getControl("VOLUME")->setValue(0.f);
     lv2Plugin->getControl("TONE")->setValue(0.f);
+    engine -> chain.replace(0, lv2Plugin) ;
 //    lv2Plugin->ports_.at(3).control = 1.f;
-    lv2Plugin->ports_.at(4).control = 0.4f;
+    engine -> chain.setControl(0, 4, 0.4f) ;
 //    lv2Plugin->ports_.at(5).control = 0.f;
     return ;
 
@@ -269,26 +439,14 @@ Java_org_acoustixaudio_opiqo_multi_AudioEngine_setValue(JNIEnv *env, jclass claz
         return;
     }
 
-    LV2Plugin * plugin = nullptr ;
-    switch (p) {
-        case 1:
-            plugin = engine->plugin1;
-            break;
-        case 2:
-            plugin = engine->plugin2;
-            break;
-        case 3:
-            plugin = engine->plugin3;
-            break;
-        case 4:
-            plugin = engine->plugin4;
-            break;
-        default:
-            LOGE("Unknown plugin index %d", p);
-            return;
+    if (p < 1 || index < 0) {
+        LOGE("Unknown plugin index %d port %d", p, index);
+        return;
     }
 
-    plugin->ports_.at (index).control = value;
+    // Applied by the audio thread in the block the stream clock puts it in
+    if (!engine->chain.setControl(p - 1, index, value, engine->chain.clock().schedule()))
+        LOGE("No control %d on plugin %d", index, p);
 //    LOGD("[setValue] Set plugin %d port %d to value %f", p, index, value);
 //    switch (index) {
 //        case 0:
@@ -311,72 +469,229 @@ Java_org_acoustixaudio_opiqo_multi_AudioEngine_setValue(JNIEnv *env, jclass claz
 
 }
 
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_native_1getControlSurface(JNIEnv *env, jclass clazz, jint p) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return nullptr;
+    }
+
+    ControlSurface *surface = p < 1 ? nullptr : engine->chain.surface(p - 1);
+    if (surface == nullptr) {
+        LOGE("No control surface for plugin %d", p);
+        return nullptr;
+    }
+
+    return env->NewDirectByteBuffer(surface->data(), surface->bytes());
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setValues(JNIEnv *env, jclass clazz, jint p,
+                                                         jintArray indices, jfloatArray values) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return 0;
+    }
+
+    const int64_t frame = engine->chain.clock().schedule();
+    jsize count = env->GetArrayLength(indices);
+    if (p < 1 || count != env->GetArrayLength(values)) {
+        LOGE("Bad batch for plugin %d", p);
+        return 0;
+    }
+
+    std::vector<jint> ports(count);
+    std::vector<jfloat> floats(count);
+    env->GetIntArrayRegion(indices, 0, count, ports.data());
+    env->GetFloatArrayRegion(values, 0, count, floats.data());
+
+    // Negative indices become huge and are dropped with the other invalid ones
+    std::vector<uint32_t> ids(ports.begin(), ports.end());
+    return engine->chain.setControls(p - 1, ids.data(), floats.data(), count, frame);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setValuesBySymbol(JNIEnv *env, jclass clazz, jint p,
+                                                                 jobjectArray symbols,
+                                                                 jfloatArray values) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return 0;
+    }
+
+    const int64_t frame = engine->chain.clock().schedule();
+    jsize count = env->GetArrayLength(symbols);
+    if (p < 1 || count != env->GetArrayLength(values)) {
+        LOGE("Bad batch for plugin %d", p);
+        return 0;
+    }
+
+    std::vector<jfloat> floats(count);
+    env->GetFloatArrayRegion(values, 0, count, floats.data());
+
+    std::vector<std::string> names(count);
+    std::vector<const char *> keys(count);
+    for (jsize i = 0; i < count; i++) {
+        auto symbol = (jstring) env->GetObjectArrayElement(symbols, i);
+        if (symbol != nullptr) {
+            const char *chars = env->GetStringUTFChars(symbol, nullptr);
+            names[i] = chars;
+            env->ReleaseStringUTFChars(symbol, chars);
+            env->DeleteLocalRef(symbol);
+        }
+        keys[i] = names[i].c_str();
+    }
+
+    return engine->chain.setControls(p - 1, keys.data(), floats.data(), count, frame);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_sendMidi(JNIEnv *env, jclass clazz, jint p,
+                                                        jbyteArray message) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return JNI_FALSE;
+    }
+
+    if (p < 1) {
+        LOGE("Unknown plugin index %d", p);
+        return JNI_FALSE;
+    }
+
+    jsize size = env->GetArrayLength(message);
+    uint8_t bytes[16];
+    if (size < 1 || size > (jsize) sizeof(bytes)) {
+        LOGE("Bad MIDI message of %d bytes", size);
+        return JNI_FALSE;
+    }
+    env->GetByteArrayRegion(message, 0, size, (jbyte *) bytes);
+
+    // Lands on the frame it was stamped with, not at the start of a block
+    const int64_t frame = engine->chain.clock().schedule();
+    return engine->chain.sendMidi(p - 1, bytes, size, frame) ? JNI_TRUE : JNI_FALSE;
+}
+
 
 extern "C"
 JNIEXPORT jint JNICALL
 Java_org_acoustixaudio_opiqo_multi_AudioEngine_addPlugin(JNIEnv *env, jclass clazz, jint position,
                                                          jstring uri) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return -1;
+    }
 
-    LV2Plugin * plugin = nullptr ;
-    switch (position) {
-        case 1:
-            plugin = engine->plugin1;
-            engine ->plugin1 = nullptr;
-            break;
-        case 2:
-            plugin = engine->plugin2;
-            engine ->plugin2 = nullptr;
-            break;
-        case 3:
-            plugin = engine->plugin3;
-            engine ->plugin3 = nullptr;
-            break;
-        case 4:
-            plugin = engine->plugin4;
-            engine ->plugin4 = nullptr;
-            break;
-        default:
-            LOGE("Unknown plugin index %d", position);
-            return -1;
+    if (position < 1) {
+        LOGE("Unknown plugin index %d", position);
+        return -1;
     }
 
-    if (plugin != nullptr) {
-        plugin ->closePlugin();
-        free(plugin);
+    const char * pluginUri = env->GetStringUTFChars(uri, nullptr);
+    LV2Plugin * plugin = engine->createPlugin(pluginUri);
+    if (plugin == nullptr) {
+        LOGE("Failed to initialize plugin %s", pluginUri);
+        env->ReleaseStringUTFChars(uri, pluginUri);
+        return -1;
     }
 
-    plugin = new LV2Plugin(engine -> world, env->GetStringUTFChars(uri, nullptr), engine -> sampleRate, 4096);
-    if ( !plugin->initialize()) {
-        LOGE("Failed to initialize plugin %s", env->GetStringUTFChars(uri, nullptr));
-        free ((void*)env->GetStringUTFChars(uri, nullptr));
+    // A mono plugin gets a second instance so the right channel is processed
+    // too, rather than copied from the left; not while the input is mono
+    LV2Plugin * twin = engine->createTwin(plugin);
+
+    // The previous occupant is destroyed once the audio callback is done with it
+    if (!engine->chain.replace(position - 1, plugin, twin)) {
+        LOGE("Audio thread not responding, could not add plugin %s", pluginUri);
+        env->ReleaseStringUTFChars(uri, pluginUri);
         return -1;
-    } else {
-        plugin->start();
-        LOGD("Successfully added plugin %s at position %d", env->GetStringUTFChars(uri, nullptr), position);
-        LOGD ("[plugininfo] %s", engine->pluginInfo[env->GetStringUTFChars(uri, nullptr)].dump(4).c_str());
+    }
+
+    LOGD("Successfully added plugin %s at position %d", pluginUri, position);
+    env->ReleaseStringUTFChars(uri, pluginUri);
+    return 0 ;
+}
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_getSlotCount(JNIEnv *env, jclass clazz) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return 0;
     }
 
-    switch (position) {
-        case 1:
-            engine->plugin1 = plugin;
-            break;
-        case 2:
-            engine->plugin2 = plugin;
-            break;
-        case 3:
-            engine->plugin3 = plugin;
-            break;
-        case 4:
-            engine->plugin4 = plugin;
-            break;
-        default:
-            LOGE("Unknown plugin index %d", position);
-            return -1;
+    return static_cast<jint>(engine->chain.size());
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_insertSlot(JNIEnv *env, jclass clazz,
+                                                          jint position) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return JNI_FALSE;
     }
 
-    free ((void*)env->GetStringUTFChars(uri, nullptr));
-    return 0 ;
+    if (position < 1) {
+        LOGE("Unknown plugin index %d", position);
+        return JNI_FALSE;
+    }
+
+    return engine->chain.insert(position - 1) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_removeSlot(JNIEnv *env, jclass clazz,
+                                                          jint position) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return JNI_FALSE;
+    }
+
+    if (position < 1) {
+        LOGE("Unknown plugin index %d", position);
+        return JNI_FALSE;
+    }
+
+    return engine->chain.remove(position - 1) ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_moveSlot(JNIEnv *env, jclass clazz,
+                                                        jint from, jint to) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return JNI_FALSE;
+    }
+
+    if (from < 1 || to < 1) {
+        LOGE("Unknown plugin index %d -> %d", from, to);
+        return JNI_FALSE;
+    }
+
+    return engine->chain.move(from - 1, to - 1) ? JNI_TRUE : JNI_FALSE;
 }
 
 
@@ -397,104 +712,134 @@ Java_org_acoustixaudio_opiqo_multi_AudioEngine_initPlugins(JNIEnv *env, jclass c
         return ;
     }
 
-    engine -> world = lilv_world_new();
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return;
+    }
+
+    // Cached between launches; lilv itself is only loaded for a new or
+    // changed bundle, or once a plugin is instantiated
     LOGD ("[test] LV2 path set to %s", path.c_str());
+    engine->loadCatalog(path);
+}
 
-    LilvNode* lv2_path = lilv_new_string(engine -> world, path.c_str());
-    lilv_world_set_option(engine -> world, LILV_OPTION_LV2_PATH, lv2_path);
-    lilv_node_free(lv2_path);
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_native_1getCatalog(JNIEnv *env, jclass clazz) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return nullptr;
+    }
 
-    lilv_world_load_all(engine -> world);
-
-    engine -> plugins = lilv_world_get_all_plugins(engine -> world);
-    engine -> pluginInfo = {} ;
-
-    LILV_FOREACH (plugins, i, engine -> plugins) {
-        const LilvPlugin* p = lilv_plugins_get(engine -> plugins, i);
-        LOGD("[plugin] %s\n", lilv_node_as_uri(lilv_plugin_get_uri(p)));
-        json pluginInfo = {
-                {"name", lilv_node_as_string(lilv_plugin_get_name(p))},
-                {"uri", lilv_node_as_string(lilv_plugin_get_uri(p))},
-                {"author", lilv_node_as_string(lilv_plugin_get_author_name(p))},
-                {"ports", lilv_plugin_get_num_ports(p)}};
-
-        pluginInfo["port"] = {};
-        for (int i = 0 ; i < lilv_plugin_get_num_ports(p); i++) {
-            const LilvPort* port = lilv_plugin_get_port_by_index(p, i);
-//            LOGD ("[test] Port %d: %s\n", i, lilv_node_as_string(lilv_port_get_symbol(p, port)));
-            pluginInfo ["port"][i] = {};
-            pluginInfo ["port"][i]["index"] = i ;
-            pluginInfo ["port"][i]["name"] = lilv_node_as_string(lilv_port_get_symbol(p, port));
-            if (lilv_port_is_a(p, port, lilv_new_uri(engine -> world, LV2_CORE__AudioPort))) {
-                pluginInfo["port"][i]["type"] = "audio";
-            }
-            else if (lilv_port_is_a(p, port, lilv_new_uri(engine -> world, LV2_CORE__ControlPort))) {
-                pluginInfo["port"][i]["type"] = "control";
-                LilvNode * def = lilv_new_float(engine -> world, 0.0f);
-                LilvNode * min = lilv_new_float(engine -> world, 0.0f);
-                LilvNode * max = lilv_new_float(engine -> world, 0.0f);
-                lilv_port_get_range(p, port, reinterpret_cast<LilvNode **>(&def),
-                                    reinterpret_cast<LilvNode **>(&min),
-                                    reinterpret_cast<LilvNode **>(&max));
-                pluginInfo["port"][i]["min"] = lilv_node_as_float(min) ;
-                pluginInfo["port"][i]["max"] = lilv_node_as_string(max);
-                pluginInfo["port"][i]["default"] = lilv_node_as_string(def);
+    if (engine->catalog.data() == nullptr) {
+        LOGE("No plugin catalog, call initPlugins first");
+        return nullptr;
+    }
 
-            }
-            else if (lilv_port_is_a(p, port, lilv_new_uri(engine -> world, LV2_ATOM__AtomPort)))
-                pluginInfo ["port"] [i] ["type"] = "atom";
-        }
+    // Read-only on the Java side; lives as long as the engine
+    return env->NewDirectByteBuffer(const_cast<uint8_t *>(engine->catalog.data()),
+                                    engine->catalog.bytes());
+}
 
-        engine->pluginInfo [pluginInfo["uri"]] = pluginInfo;
+extern "C"
+JNIEXPORT jintArray JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_searchPlugins(JNIEnv *env, jclass clazz,
+                                                             jstring text, jstring category,
+                                                             jint audioInputs, jint audioOutputs,
+                                                             jint offset, jint limit) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return nullptr;
     }
 
-//    LOGD("[plugininfo] %s", engine -> pluginInfo.dump(4).c_str());
+    CatalogIndex::Query query;
+    if (text != nullptr) {
+        const char *chars = env->GetStringUTFChars(text, nullptr);
+        query.text = chars;
+        env->ReleaseStringUTFChars(text, chars);
+    }
+    if (category != nullptr) {
+        const char *chars = env->GetStringUTFChars(category, nullptr);
+        query.category = chars;
+        env->ReleaseStringUTFChars(category, chars);
+    }
+    query.audioInputs = audioInputs;
+    query.audioOutputs = audioOutputs;
+
+    // Total matches, then the catalog indices of the page
+    std::vector<uint32_t> page;
+    const uint32_t total = engine->catalogIndex.search(query, std::max(offset, 0),
+                                                       std::max(limit, 0), page);
+    jintArray result = env->NewIntArray(page.size() + 1);
+    if (result == nullptr) return nullptr;
+
+    const jint count = total;
+    env->SetIntArrayRegion(result, 0, 1, &count);
+    env->SetIntArrayRegion(result, 1, page.size(), reinterpret_cast<const jint *>(page.data()));
+    return result;
 }
 
 extern "C"
-JNIEXPORT jstring JNICALL
-Java_org_acoustixaudio_opiqo_multi_AudioEngine_getPluginInfo(JNIEnv *env, jclass clazz) {
+JNIEXPORT jobjectArray JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_getPluginCategories(JNIEnv *env, jclass clazz) {
     if (engine == nullptr) {
         LOGE(
                 "Engine is null, you must call createEngine before calling this "
                 "method");
-        return env->NewStringUTF("{}");
+        return nullptr;
     }
 
-    return env->NewStringUTF(to_string (engine -> pluginInfo).c_str());
+    const std::vector<std::string> &categories = engine->catalogIndex.categories();
+    jobjectArray result = env->NewObjectArray(categories.size(),
+                                              env->FindClass("java/lang/String"), nullptr);
+    if (result == nullptr) return nullptr;
+
+    for (size_t i = 0; i < categories.size(); i++) {
+        jstring name = env->NewStringUTF(categories[i].c_str());
+        env->SetObjectArrayElement(result, i, name);
+        env->DeleteLocalRef(name);
+    }
+    return result;
 }
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_org_acoustixaudio_opiqo_multi_AudioEngine_deletePlugin(JNIEnv *env, jclass clazz,
                                                             jint plugin) {
-    switch (plugin) {
-        case 1:
-            if (engine->plugin1) {
-                engine->plugin1 = nullptr;
-                engine->plugin1->closePlugin();
-                free(engine->plugin1);
-            }
-            break;
-        case 2:
-            if (engine->plugin2) {
-                engine->plugin2 = nullptr;
-                engine->plugin2->closePlugin();
-                free(engine->plugin2);
-            }
-            break ;
-        case 3:
-            if (engine->plugin3) {
-                engine->plugin3 = nullptr;
-                engine->plugin3->closePlugin();
-                free(engine->plugin3);
-            }
-            break ;
-        case 4:
-            if (engine->plugin4) {
-                engine->plugin4 = nullptr;
-                engine->plugin4->closePlugin();
-                free(engine->plugin4);
-            }
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return;
+    }
 
+    if (plugin < 1 || static_cast<size_t>(plugin) > engine->chain.size()) {
+        LOGE("Unknown plugin index %d", plugin);
+        return;
     }
-}
\ No newline at end of file
+
+    // Keep the slot, just empty it
+    engine->chain.replace(plugin - 1, nullptr);
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_org_acoustixaudio_opiqo_multi_AudioEngine_setBypass(JNIEnv *env, jclass clazz, jint plugin,
+                                                         jboolean bypass) {
+    if (engine == nullptr) {
+        LOGE(
+                "Engine is null, you must call createEngine before calling this "
+                "method");
+        return;
+    }
+
+    if (plugin < 1 || !engine->chain.setBypass(plugin - 1, bypass == JNI_TRUE,
+                                               engine->chain.clock().schedule()))
+        LOGE("Unknown plugin index %d", plugin);
+}
@@ -0,0 +1,350 @@
+package org.acoustixaudio.opiqo.multi;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Extracts the LV2 bundles shipped in assets/ into the files directory, and
+ * keeps them in sync across app updates without copying anything that has
+ * not changed.
+ *
+ * The build generates assets/lv2.manifest with the SHA-256, size and path of
+ * every file (see generateLv2Manifest in app/build.gradle). A copy of the
+ * manifest that was last installed is kept in the files directory, so after an
+ * update only the bundles with a new or changed file are extracted. Each of
+ * those is assembled in a staging directory, its files copied in parallel and
+ * checked against their hash, and then renamed over the old one, so a crash
+ * half way never leaves a truncated .so where lilv will find it.
+ *
+ * Until the app is updated again, install() only reads a small stamp file.
+ */
+public class AssetInstaller {
+    private static final String TAG = "AssetInstaller";
+    private static final String MANIFEST = "lv2.manifest";
+    private static final String STAMP = "lv2.installed";
+    private static final String STAGING = ".staging";
+    private static final String TRASH = ".trash";
+
+    // Per read/write, big enough that a plugin binary takes a handful
+    private static final int CHUNK = 1 << 20;
+
+    private final Context context;
+    private final AssetManager assets;
+    private final File baseDir;
+
+    private static class Entry {
+        final String hash;
+        final long size;
+        final String path;      // relative to assets/, e.g. lv2/x.lv2/x.so
+
+        Entry(String hash, long size, String path) {
+            this.hash = hash;
+            this.size = size;
+            this.path = path;
+        }
+
+        boolean sameAs(Entry other) {
+            return other != null && size == other.size && hash.equals(other.hash);
+        }
+    }
+
+    public AssetInstaller(Context context) {
+        this.context = context;
+        this.assets = context.getAssets();
+        this.baseDir = context.getFilesDir();
+    }
+
+    /**
+     * Brings files/lv2 up to date with the bundles in the APK.
+     *
+     * @return the directory the bundles are in
+     */
+    public File install() throws IOException {
+        File root = new File(baseDir, "lv2");
+        File stampFile = new File(baseDir, STAMP);
+        String version = packageStamp();
+
+        // Common case: same APK as last time
+        if (root.isDirectory() && version.equals(readString(stampFile)))
+            return root;
+
+        byte[] manifestBytes = readAsset(MANIFEST);
+        Map<String, List<Entry>> wanted = parse(manifestBytes);
+        File installedFile = new File(baseDir, MANIFEST);
+        Map<String, List<Entry>> installed = installedFile.isFile()
+                ? parse(Files.readAllBytes(installedFile.toPath()))
+                : new HashMap<>();
+
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("Cannot create " + root);
+
+        // Left over by a run that did not finish
+        File staging = new File(root, STAGING);
+        File trash = new File(root, TRASH);
+        deleteRecursively(staging);
+        deleteRecursively(trash);
+
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, List<Entry>> bundle : wanted.entrySet()) {
+            if (!upToDate(root, bundle.getValue(), installed.get(bundle.getKey())))
+                changed.add(bundle.getKey());
+        }
+
+        if (!changed.isEmpty()) {
+            Log.d(TAG, "install: extracting " + changed);
+            extract(root, staging, trash, changed, wanted);
+        }
+
+        // Bundles an earlier version shipped and this one does not
+        for (String bundle : installed.keySet()) {
+            if (!wanted.containsKey(bundle))
+                deleteRecursively(new File(root, bundle));
+        }
+        deleteRecursively(trash);
+
+        writeAtomically(installedFile, manifestBytes);
+        writeAtomically(stampFile, version.getBytes(StandardCharsets.UTF_8));
+        return root;
+    }
+
+    // ---------- Extraction ----------
+
+    private void extract(File root, File staging, File trash, List<String> bundles,
+                         Map<String, List<Entry>> wanted) throws IOException {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> copies = new ArrayList<>();
+            for (String bundle : bundles) {
+                for (Entry entry : wanted.get(bundle)) {
+                    File target = new File(staging, relativePath(entry));
+                    copies.add(pool.submit(() -> {
+                        copy(entry, target);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> copy : copies) {
+                try {
+                    copy.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted extracting assets", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Every file is in place and verified, swap the bundles in
+        if (!trash.mkdirs() && !trash.isDirectory())
+            throw new IOException("Cannot create " + trash);
+        for (String bundle : bundles) {
+            File current = new File(root, bundle);
+            if (current.exists())
+                Files.move(current.toPath(), new File(trash, bundle).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            Files.move(new File(staging, bundle).toPath(), current.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        deleteRecursively(staging);
+    }
+
+    private void copy(Entry entry, File target) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Cannot create " + parent);
+
+        MessageDigest digest = sha256();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK);
+        long remaining = entry.size;
+
+        try (Source source = open(entry.path);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+                int read = source.channel.read(buffer);
+                if (read < 0) break;
+                remaining -= read;
+
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) out.write(buffer);
+            }
+            out.force(true);
+        }
+
+        if (remaining != 0 || !toHex(digest.digest()).equals(entry.hash))
+            throw new IOException("Corrupt asset " + entry.path);
+    }
+
+    /**
+     * An asset as a channel. Uncompressed assets are read straight out of the
+     * APK through its file descriptor; compressed ones have to be inflated
+     * through a stream.
+     */
+    private static class Source implements AutoCloseable {
+        final ReadableByteChannel channel;
+
+        Source(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private Source open(String path) throws IOException {
+        try {
+            AssetFileDescriptor afd = assets.openFd(path);
+            FileChannel channel = afd.createInputStream().getChannel();
+            channel.position(afd.getStartOffset());
+            return new Source(channel);
+        } catch (FileNotFoundException compressed) {
+            InputStream in = assets.open(path, AssetManager.ACCESS_STREAMING);
+            return new Source(Channels.newChannel(in));
+        }
+    }
+
+    // ---------- Manifest ----------
+
+    // "<sha256> <size> <path>" per line, grouped by bundle (lv2/<bundle>/...)
+    private static Map<String, List<Entry>> parse(byte[] manifest) throws IOException {
+        Map<String, List<Entry>> bundles = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new java.io.ByteArrayInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split(" ", 3);
+                if (fields.length != 3) throw new IOException("Bad manifest line: " + line);
+
+                Entry entry = new Entry(fields[0], Long.parseLong(fields[1]), fields[2]);
+                String bundle = relativePath(entry);
+                int slash = bundle.indexOf('/');
+                if (slash <= 0) continue;
+                bundles.computeIfAbsent(bundle.substring(0, slash), k -> new ArrayList<>()).add(entry);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad manifest", e);
+        }
+        return bundles;
+    }
+
+    // The path of the entry under files/lv2
+    private static String relativePath(Entry entry) {
+        return entry.path.startsWith("lv2/") ? entry.path.substring(4) : entry.path;
+    }
+
+    // Same files as last installed, and still there at the right size. The
+    // hashes were checked when they were copied.
+    private static boolean upToDate(File root, List<Entry> wanted, List<Entry> installed) {
+        if (installed == null || installed.size() != wanted.size()) return false;
+        Map<String, Entry> byPath = new HashMap<>();
+        for (Entry entry : installed) byPath.put(entry.path, entry);
+        for (Entry entry : wanted) {
+            if (!entry.sameAs(byPath.get(entry.path))) return false;
+            if (new File(root, relativePath(entry)).length() != entry.size) return false;
+        }
+        return true;
+    }
+
+    // ---------- Helpers ----------
+
+    // Changes whenever a new APK is installed
+    private String packageStamp() {
+        try {
+            return String.valueOf(context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            return "";
+        }
+    }
+
+    private byte[] readAsset(String path) throws IOException {
+        try (InputStream in = assets.open(path)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static String readString(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeAtomically(File file, byte[] data) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap(data));
+            out.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        if (!file.exists()) return;
+        try (Stream<java.nio.file.Path> paths = Files.walk(file.toPath())) {
+            for (java.nio.file.Path path : (Iterable<java.nio.file.Path>)
+                    paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
@@ -4,16 +4,150 @@ import android.content.Context;
 import android.media.AudioManager;
 import android.os.Build;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class AudioEngine {
     static native boolean create();
     static native boolean isAAudioRecommended();
     static native boolean setAPI(int apiType);
     static native boolean setEffectOn(boolean isEffectOn);
+    static native boolean setMonoInput(int channel);
+    static native boolean setBlockSize(int frames);
+    static native int getBlockSize();
+    static native void setSmoothingTime(float millis);
+
+    // Indices into getStats(), see LiveEffectEngine::StatsField
+    static final int STAT_CALLBACKS = 0;
+    static final int STAT_OUTPUT_XRUNS = 1;
+    static final int STAT_INPUT_XRUNS = 2;
+    static final int STAT_UNDERFLOWS = 3;
+    static final int STAT_DEADLINE_US = 4;
+    static final int STAT_WALL_MEAN_US = 5;
+    static final int STAT_WALL_P99_US = 6;
+    static final int STAT_WALL_MAX_US = 7;
+    static final int STAT_CPU_MEAN_US = 8;
+    static final int STAT_CPU_P99_US = 9;
+    static final int STAT_CPU_MAX_US = 10;
+    static final int STAT_LOAD_MEAN = 11;
+    static final int STAT_LOAD_P99 = 12;
+    static final int STAT_LOAD_P999 = 13;
+    static final int STAT_LOAD_MAX = 14;
+
+    /**
+     * Callback timing since the last resetStats(), indexed by the STAT_
+     * constants. Load is callback wall time over the time its frames last.
+     */
+    static native double[] getStats();
+
+    // Indices into getPluginStats(), see LiveEffectEngine::SlotStatsField
+    static final int PLUGIN_STAT_BLOCKS = 0;
+    static final int PLUGIN_STAT_MEAN_US = 1;
+    static final int PLUGIN_STAT_P99_US = 2;
+    static final int PLUGIN_STAT_MAX_US = 3;
+    static final int PLUGIN_STAT_SHARE_MEAN = 4;
+    static final int PLUGIN_STAT_SHARE_P99 = 5;
+    static final int PLUGIN_STAT_SHARE_MAX = 6;
+
+    /**
+     * What the plugin in a slot costs per block, indexed by the PLUGIN_STAT_
+     * constants, or null for an empty slot. Share is the fraction of the
+     * block's duration spent in the plugin.
+     */
+    static native double[] getPluginStats(int plugin);
+
+    // Clears getStats() and every getPluginStats()
+    static native void resetStats();
+
+    /**
+     * Fade out and skip the most expensive plugin when the chain takes more
+     * than threshold of the block period for that many blocks in a row. It
+     * is faded back in once there is room again. 0 turns it off.
+     */
+    static native void setWatchdog(float threshold, int blocks);
+
+    // Event types in pollWatchdog()
+    static final int WATCHDOG_THROTTLED = 0;
+    static final int WATCHDOG_RESTORED = 1;
+
+    /**
+     * Next watchdog decision as {type, plugin, load percent}, or null if
+     * there is none. Poll from one thread only.
+     */
+    static native int[] pollWatchdog();
+
+    // Indices into measureLatency(), all in milliseconds, -1 if unknown
+    static final int LATENCY_ROUND_TRIP = 0;
+    static final int LATENCY_DEVICE = 1;
+    static final int LATENCY_INPUT = 2;
+    static final int LATENCY_OUTPUT = 3;
+    static final int LATENCY_SCHEDULER = 4;
+    static final int LATENCY_PLUGINS = 5;
+
+    /**
+     * Measure the round trip latency with a noise burst played on the output
+     * and recorded on the input, so the output must reach the input. Blocks
+     * for about a second; the effect must be on. Null if it failed.
+     */
+    static native double[] measureLatency();
     static native void setValue ( int plugin, int index, float value);
+    static native int setValues (int plugin, int[] indices, float[] values);
+    static native int setValuesBySymbol (int plugin, String[] symbols, float[] values);
+    static native boolean sendMidi (int plugin, byte[] message);
+    static native ByteBuffer native_getControlSurface (int plugin);
+
+    /**
+     * Shared-memory view of a slot's port values, or null for an empty slot.
+     * Writing through setSurfaceValue costs no JNI call.
+     */
+    static ByteBuffer getControlSurface (int plugin) {
+        ByteBuffer surface = native_getControlSurface(plugin);
+        return surface == null ? null : surface.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Write a port value straight into a slot's control surface, see
+     * getControlSurface. The audio thread picks it up on its next block.
+     * Call from one thread only (the UI thread).
+     */
+    static void setSurfaceValue (ByteBuffer surface, int index, float value) {
+        if (index < 0 || index >= surface.getInt(4))
+            return;
+        surface.putFloat(8 + 4 * index, value);
+        surface.putInt(0, surface.getInt(0) + 1);
+    }
+    static native void setBypass ( int plugin, boolean bypass);
     static native int addPlugin (int position, String uri) ;
     static native void deletePlugin (int plugin);
-    static native String getPluginInfo ();
+    static native int getSlotCount ();
+    static native boolean insertSlot (int position);
+    static native boolean removeSlot (int position);
+    static native boolean moveSlot (int from, int to);
+    static native ByteBuffer native_getCatalog ();
+
+    /**
+     * The engine's plugin catalog, read-only, or null before initPlugins.
+     * See PluginCatalog.
+     */
+    static ByteBuffer getCatalog () {
+        ByteBuffer catalog = native_getCatalog();
+        return catalog == null ? null : catalog.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
     static native void initPlugins (String lv2Path);
+
+    /**
+     * Search the plugin catalog. Words in text must all occur in a plugin's
+     * name, author or class; category, audioInputs and audioOutputs narrow it
+     * down when not null or -1.
+     *
+     * @return the number of matches in all, then the PluginCatalog indices
+     *         of at most limit of them from offset on, best first
+     */
+    static native int[] searchPlugins (String text, String category, int audioInputs,
+                                       int audioOutputs, int offset, int limit);
+
+    /** Classes of the installed plugins, e.g. "Distortion", sorted. */
+    static native String[] getPluginCategories ();
     static native void setRecordingDeviceId(int deviceId);
     static native void setPlaybackDeviceId(int deviceId);
     static native void delete();
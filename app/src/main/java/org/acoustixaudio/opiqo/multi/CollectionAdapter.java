@@ -16,12 +16,15 @@ import org.acoustixaudio.opiqo.multi.R;
 
 public class CollectionAdapter extends FragmentStateAdapter {
     public MainActivity mainActivity;
+    private CollectionFragment collection;
+
     public CollectionAdapter(Fragment fragment) {
         super(fragment);
     }
 
     public CollectionAdapter(CollectionFragment fragment, MainActivity _mainActivity) {
         super(fragment);
+        collection = fragment;
         mainActivity = _mainActivity;
     }
 
@@ -39,7 +42,8 @@ public class CollectionAdapter extends FragmentStateAdapter {
 
     @Override
     public int getItemCount() {
-        return 4;
+        // Kept by the fragment, the engine may not exist yet
+        return collection == null ? 0 : collection.slotCount;
     }
 }
 
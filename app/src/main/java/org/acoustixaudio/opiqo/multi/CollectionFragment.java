@@ -19,6 +19,8 @@ public class CollectionFragment extends Fragment {
     CollectionAdapter collectionAdapter;
     ViewPager2 viewPager;
     public MainActivity mainActivity ;
+    // Pedal slots in the engine's chain, 0 until it is ready
+    int slotCount = 0;
 
     public CollectionFragment(MainActivity _mainActivity) {
         mainActivity = _mainActivity;
@@ -42,4 +44,31 @@ public class CollectionFragment extends Fragment {
                 (tab, position) -> tab.setText("Pedal " + (position + 1))
         ).attach();
     }
+
+    // The slots exist once the engine does
+    void onEngineReady() {
+        slotCount = AudioEngine.getSlotCount();
+        if (collectionAdapter != null)
+            collectionAdapter.notifyDataSetChanged();
+
+        // The adapter keeps its pages in our child fragment manager
+        if (isAdded())
+            for (Fragment page : getChildFragmentManager().getFragments())
+                if (page instanceof ObjectFragment)
+                    ((ObjectFragment) page).onEngineReady();
+    }
+
+    // Keep an empty pedal at the end of the chain so there is always
+    // somewhere to add the next one
+    void onSlotFilled(int position) {
+        // A load that finished after the activity went away
+        if (!isAdded() || position < slotCount)
+            return;
+
+        if (!AudioEngine.insertSlot(position + 1))
+            return;
+        slotCount++;
+        if (collectionAdapter != null)
+            collectionAdapter.notifyItemInserted(position);
+    }
 }
@@ -0,0 +1,101 @@
+package org.acoustixaudio.opiqo.multi;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gets the engine and the plugin catalog ready off the UI thread, so the
+ * activity can draw straight away and light up as each part is ready.
+ *
+ * Creating the engine and extracting the LV2 bundles do not depend on each
+ * other and run side by side. The catalog needs both: it is loaded (from the
+ * native cache when no bundle changed) once they are done.
+ *
+ * Each stage is a future; the listener hears about each one on the main
+ * thread as it completes or fails. A stage that needs a failed one fails
+ * with it.
+ */
+public class EngineBootstrap {
+    private static final String TAG = "EngineBootstrap";
+
+    public enum Stage {
+        ENGINE,     // AudioEngine calls are safe, the pedal slots exist
+        ASSETS,     // bundles extracted to files/lv2
+        CATALOG     // installed plugins known, pedals can be added
+    }
+
+    public interface Listener {
+        void onStageComplete(Stage stage);
+        void onStageFailed(Stage stage, Throwable error);
+    }
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private CompletableFuture<Void> engine;
+    private CompletableFuture<File> assets;
+    private CompletableFuture<PluginCatalog> catalog;
+
+    public EngineBootstrap(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Start all stages. Only once.
+     *
+     * @param listener told about each stage on the main thread, may be null
+     */
+    public void start(Listener listener) {
+        Executor main = context.getMainExecutor();
+
+        engine = CompletableFuture.runAsync(() -> {
+            if (!AudioEngine.create())
+                throw new IllegalStateException("Could not create the audio engine");
+        }, executor);
+        assets = CompletableFuture.supplyAsync(() -> {
+            try {
+                return new AssetInstaller(context).install();
+            } catch (java.io.IOException e) {
+                // Whatever an earlier run extracted may still be usable
+                Log.e(TAG, "Extracting LV2 bundles failed", e);
+                return new File(context.getFilesDir(), "lv2");
+            }
+        }, executor);
+        catalog = engine.thenCombineAsync(assets, (ignored, dir) -> {
+            AudioEngine.initPlugins(dir.getAbsolutePath());
+            PluginCatalog plugins = PluginCatalog.get();
+            if (plugins == null)
+                throw new IllegalStateException("No plugin catalog");
+            return plugins;
+        }, executor);
+        catalog.whenComplete((info, error) -> executor.shutdown());
+
+        if (listener == null) return;
+        notify(engine, Stage.ENGINE, listener, main);
+        notify(assets, Stage.ASSETS, listener, main);
+        notify(catalog, Stage.CATALOG, listener, main);
+    }
+
+    public CompletableFuture<Void> engine() { return engine; }
+    public CompletableFuture<File> assets() { return assets; }
+    public CompletableFuture<PluginCatalog> catalog() { return catalog; }
+
+    private static void notify(CompletableFuture<?> future, Stage stage, Listener listener,
+                               Executor main) {
+        future.whenCompleteAsync((result, error) -> {
+            if (error == null) {
+                Log.d(TAG, "[bootstrap] " + stage + " ready");
+                listener.onStageComplete(stage);
+            } else {
+                Throwable cause = error instanceof java.util.concurrent.CompletionException
+                        && error.getCause() != null ? error.getCause() : error;
+                listener.onStageFailed(stage, cause);
+            }
+        }, main);
+    }
+}
@@ -6,10 +6,11 @@ import android.Manifest;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
-import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.CompoundButton;
@@ -28,13 +29,10 @@ import androidx.core.content.ContextCompat;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
+import androidx.lifecycle.Lifecycle;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.File;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
@@ -44,14 +42,35 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private static final int PERMISSION_REQUEST_CODE = 100;
-    private ToggleButton onOff;
+    private ToggleButton onOff, mono;
     private Context context;
 
-    public JSONObject pluginInfo;
-    ArrayList <String> pluginNames;
-    ArrayList <String> pluginUris;
+    public PluginCatalog catalog;
     ScrollView pluginUIContainer1, pluginUIContainer2, pluginUIContainer3, pluginUIContainer4;
     private CollectionFragment collectionFragment;
+    private EngineBootstrap bootstrap;
+    private boolean engineReady = false;
+    private final ExecutorService pluginLoader = Executors.newSingleThreadExecutor();
+    // A measurement blocks for a second or more, keep it clear of plugin loads
+    private final ExecutorService latencyProbe = Executors.newSingleThreadExecutor();
+
+    // Tell the user when the engine drops or restores a pedal to keep up
+    private static final long WATCHDOG_POLL_MS = 250;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable pollWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            int[] event;
+            while ((event = AudioEngine.pollWatchdog()) != null) {
+                String message = event[0] == AudioEngine.WATCHDOG_THROTTLED
+                        ? "Pedal " + event[1] + " bypassed, CPU at " + event[2] + "%"
+                        : "Pedal " + event[1] + " restored";
+                Log.w(TAG, "[watchdog] " + message);
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+            }
+            handler.postDelayed(this, WATCHDOG_POLL_MS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -65,9 +84,6 @@ public class MainActivity extends AppCompatActivity {
             return insets;
         });
 
-        pluginNames = new ArrayList<>();
-        pluginUris = new ArrayList<>();
-
         // Request record audio permission if not already granted
         requestRecordAudioPermission();
         pluginUIContainer1 = findViewById(R.id.plugin_container);
@@ -78,33 +94,38 @@ public class MainActivity extends AppCompatActivity {
                 .replace(R.id.pager_container, collectionFragment)
                 .commit();
 
-        String path = getFilesDir() + "/lv2";
-        Log.d(TAG, "onCreate: [lv2 path] " + path);
-        copyAssetsToFiles("lv2");
-
-        AudioEngine.create();
-        AudioEngine.initPlugins(path);
-        try {
-            pluginInfo = new JSONObject(AudioEngine.getPluginInfo());
-//            Log.d(TAG, "onCreate: [plugin info] " + pluginInfo.toString(2));
-
-            Iterator<String> keys = pluginInfo.keys();
-            String plugin = null;
-            while(keys.hasNext()) {
-                String key = keys.next();
-                plugin = key;
-                pluginUris.add(pluginInfo.getJSONObject(key).getString("uri"));
-                pluginNames.add(pluginInfo.getJSONObject(key).getString("name"));
-                if (pluginInfo.get(key) instanceof JSONObject) {
-//                    Log.d(TAG, "onCreate: [plugin] + " + key + " : " + pluginInfo.getJSONObject(key).toString(2));
+        // Engine, bundles and catalog come up in the background; the
+        // controls are enabled as each part is ready
+        bootstrap = new EngineBootstrap(this);
+        bootstrap.start(new EngineBootstrap.Listener() {
+            @Override
+            public void onStageComplete(EngineBootstrap.Stage stage) {
+                switch (stage) {
+                    case ENGINE:
+                        engineReady = true;
+                        if (getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED))
+                            startWatchdogPoll();
+                        onOff.setEnabled(true);
+                        mono.setEnabled(true);
+                        findViewById(R.id.latency_button).setEnabled(true);
+                        collectionFragment.onEngineReady();
+                        break;
+                    case CATALOG:
+                        onCatalogReady(bootstrap.catalog().join());
+                        break;
+                    default:
+                        break;
                 }
             }
 
-
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
-        }
-
+            @Override
+            public void onStageFailed(EngineBootstrap.Stage stage, Throwable error) {
+                Log.e(TAG, "[bootstrap] " + stage + " failed", error);
+                // Fails along with any stage it needs
+                if (stage == EngineBootstrap.Stage.CATALOG)
+                    Toast.makeText(context, "Could not load plugins", Toast.LENGTH_LONG).show();
+            }
+        });
 
         onOff = findViewById(R.id.onoff);
         onOff.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
@@ -116,6 +137,111 @@ public class MainActivity extends AppCompatActivity {
                     AudioEngine.setEffectOn(b);
             }
         });
+
+        // Guitar input: read only the first input channel and keep mono
+        // plugins on one channel. The streams have to be reopened for it.
+        mono = findViewById(R.id.mono);
+        mono.setOnCheckedChangeListener((compoundButton, b) -> {
+            boolean running = onOff.isChecked();
+            if (running)
+                AudioEngine.setEffectOn(false);
+            AudioEngine.setMonoInput(b ? 0 : -1);
+            if (running)
+                AudioEngine.setEffectOn(true);
+        });
+
+        findViewById(R.id.latency_button).setOnClickListener(v -> confirmMeasureLatency());
+
+        // Until the engine exists
+        onOff.setEnabled(false);
+        mono.setEnabled(false);
+        findViewById(R.id.latency_button).setEnabled(false);
+    }
+
+    private void onCatalogReady(PluginCatalog plugins) {
+        catalog = plugins;
+    }
+
+    // The burst is full-scale noise, so ask before playing it
+    void confirmMeasureLatency() {
+        if (!onOff.isChecked()) {
+            Toast.makeText(context, "Turn the effect on to measure latency", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        new AlertDialog.Builder(context)
+                .setTitle("Measure latency")
+                .setMessage("This plays a loud noise burst for about a second. Turn your amp and "
+                        + "headphones down, and connect the output to the input.")
+                .setPositiveButton("Measure", (dialog, which) -> measureLatency())
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Play a test burst and time how long it takes to come back, through the
+     * device and through the pedals. Needs the output to reach the input.
+     */
+    void measureLatency() {
+        View button = findViewById(R.id.latency_button);
+        button.setEnabled(false);
+        Toast.makeText(context, "Measuring latency…", Toast.LENGTH_SHORT).show();
+        latencyProbe.execute(() -> {
+            double[] latency = AudioEngine.measureLatency();
+            runOnUiThread(() -> {
+                button.setEnabled(true);
+                if (latency == null) {
+                    Toast.makeText(context, "No signal came back, loop the output to the input", Toast.LENGTH_LONG).show();
+                    return;
+                }
+
+                String message = String.format(java.util.Locale.US,
+                        "Round trip: %.1f ms\n\nDevice: %.1f ms\n  input: %.1f ms\n  output: %.1f ms\nBlock scheduler: %.1f ms\nPlugins: %.1f ms",
+                        latency[AudioEngine.LATENCY_ROUND_TRIP],
+                        latency[AudioEngine.LATENCY_DEVICE],
+                        latency[AudioEngine.LATENCY_INPUT],
+                        latency[AudioEngine.LATENCY_OUTPUT],
+                        latency[AudioEngine.LATENCY_SCHEDULER],
+                        latency[AudioEngine.LATENCY_PLUGINS]);
+                new AlertDialog.Builder(context)
+                        .setTitle("Latency")
+                        .setMessage(message)
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+            });
+        });
+    }
+
+    // Engine calls made before ENGINE only log errors
+    boolean isEngineReady() {
+        return engineReady;
+    }
+
+    private void startWatchdogPoll() {
+        handler.removeCallbacks(pollWatchdog);
+        handler.post(pollWatchdog);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (engineReady)
+            startWatchdogPoll();
+    }
+
+    @Override
+    protected void onPause() {
+        handler.removeCallbacks(pollWatchdog);
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacks(pollWatchdog);
+        // A load already running still finishes, its result is dropped
+        pluginLoader.shutdown();
+        latencyProbe.shutdown();
+        super.onDestroy();
     }
 
     /**
@@ -151,67 +277,43 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private String copyAssetsToFiles(String assetDir) {
-        File baseDir = getFilesDir();
-        try {
-            copyAssetDir(getAssets(), assetDir, baseDir);
-        } catch (java.io.IOException e) {
-            Log.e(TAG, "copyAssetsToFiles failed", e);
+    public void showAddPluginDialog(View root, TextView add, int position) {
+        if (catalog == null) {
+            Toast.makeText(context, "Still loading plugins…", Toast.LENGTH_SHORT).show();
+            return;
         }
 
-        return baseDir.getAbsolutePath();
-    }
-
-    private void copyAssetDir(android.content.res.AssetManager am, String assetPath, File outDir) throws java.io.IOException {
-        String[] list = am.list(assetPath);
-        if (list == null || list.length == 0) {
-            // It's a file
-            String name = assetPath.contains("/") ? assetPath.substring(assetPath.lastIndexOf('/') + 1) : assetPath;
-            File outFile = new File(outDir, name);
-            try (java.io.InputStream in = am.open(assetPath);
-                 java.io.OutputStream out = new java.io.FileOutputStream(outFile)) {
-                byte[] buf = new byte[8192];
-                int r;
-                while ((r = in.read(buf)) != -1) {
-                    out.write(buf, 0, r);
-                }
-            }
-        } else {
-            // It's a directory
-            File targetDir = outDir;
-            if (!assetPath.isEmpty()) {
-                String name = assetPath.contains("/") ? assetPath.substring(assetPath.lastIndexOf('/') + 1) : assetPath;
-                targetDir = new File(outDir, name);
-                if (!targetDir.exists()) targetDir.mkdirs();
-            }
-            for (String name : list) {
-                String child = assetPath.isEmpty() ? name : assetPath + "/" + name;
-                copyAssetDir(am, child, targetDir);
-            }
-        }
-    }
+        new PluginPicker(context, catalog, pluginUri -> {
+            // The plugin being replaced takes its control surface with it
+            LinearLayout slot = (LinearLayout) root;
+            for (int i = 0; i < slot.getChildCount(); i++)
+                if (slot.getChildAt(i) instanceof UI)
+                    ((UI) slot.getChildAt(i)).release();
 
-    public void showAddPluginDialog(View root, TextView add, int position) {
-        AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        CharSequence [] pluginNamesArray = pluginNames.toArray(new CharSequence[0]);
-        builder.setTitle("Add Plugin")
-                .setItems(pluginNamesArray, new DialogInterface.OnClickListener() {
-                    public void onClick(DialogInterface dialog, int which) {
-                        // The 'which' argument contains the index position of the selected item.
-                        String pluginUri = pluginUris.get(which);
-                        AudioEngine.addPlugin(position, pluginUri);
-                        Log.d(TAG, "[add plugin]: " + position + ":" + pluginUri);
-                        UI pluginUI = new UI(context, pluginInfo.optJSONObject(pluginUri).toString(), position);
-                        pluginUI.add = add;
-
-                        LinearLayout layout = (LinearLayout) root;
-                        layout.removeAllViews();
-
-                        layout.addView(pluginUI);
-                        add.setVisibility(GONE);
+            // Instantiating can take a while, keep it off the UI thread;
+            // the engine crossfades to the new plugin once it is ready
+            pluginLoader.execute(() -> {
+                int result = AudioEngine.addPlugin(position, pluginUri);
+                runOnUiThread(() -> {
+                    if (isDestroyed())
+                        return;
+                    if (result != 0) {
+                        Toast.makeText(context, "Failed to load plugin", Toast.LENGTH_SHORT).show();
+                        return;
                     }
-                });
 
-        builder.show();
+                    Log.d(TAG, "[add plugin]: " + position + ":" + pluginUri);
+                    collectionFragment.onSlotFilled(position);
+                    UI pluginUI = new UI(context, catalog.find(pluginUri), position);
+                    pluginUI.add = add;
+
+                    LinearLayout layout = (LinearLayout) root;
+                    layout.removeAllViews();
+
+                    layout.addView(pluginUI);
+                    add.setVisibility(GONE);
+                });
+            });
+        }).show();
     }
 }
\ No newline at end of file
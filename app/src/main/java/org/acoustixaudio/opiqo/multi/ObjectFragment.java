@@ -1,6 +1,8 @@
 package org.acoustixaudio.opiqo.multi;
 
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,15 +12,29 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import java.util.Locale;
+
 // Instances of this class are fragments representing a single
 // object in the collection.
 public class ObjectFragment extends Fragment {
     public static final String ARG_OBJECT = "object";
     public MainActivity mainActivity;
     TextView add = null;
+    TextView cost = null;
     View root = null;
     int position;
 
+    // How often the DSP cost of the pedal is refreshed while visible
+    static final long COST_REFRESH_MS = 500;
+    final Handler handler = new Handler(Looper.getMainLooper());
+    final Runnable refreshCost = new Runnable() {
+        @Override
+        public void run() {
+            showCost();
+            handler.postDelayed(this, COST_REFRESH_MS);
+        }
+    };
+
     public ObjectFragment(MainActivity _mainActivity) {
         mainActivity = _mainActivity;
     }
@@ -45,6 +61,55 @@ public class ObjectFragment extends Fragment {
         });
 
         root = view.findViewById(R.id.plugin_box);
+        cost = view.findViewById(R.id.cost);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mainActivity.isEngineReady())
+            startCostRefresh();
+    }
+
+    @Override
+    public void onPause() {
+        handler.removeCallbacks(refreshCost);
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroyView() {
+        handler.removeCallbacks(refreshCost);
+        super.onDestroyView();
+    }
+
+    // From CollectionFragment, when the ENGINE stage completes
+    void onEngineReady() {
+        if (isResumed())
+            startCostRefresh();
+    }
+
+    private void startCostRefresh() {
+        handler.removeCallbacks(refreshCost);
+        handler.post(refreshCost);
+    }
+
+    // Time the pedal takes per block and how much of the block that is
+    void showCost () {
+        double[] stats = AudioEngine.getPluginStats(position);
+        if (stats == null || stats[AudioEngine.PLUGIN_STAT_BLOCKS] == 0) {
+            cost.setVisibility(View.GONE);
+            return;
+        }
+
+        cost.setText(String.format(Locale.US, "DSP %.0f µs avg · %.0f µs p99 · %.0f µs peak\n%.1f%% of block (p99 %.1f%%, peak %.1f%%)",
+                stats[AudioEngine.PLUGIN_STAT_MEAN_US],
+                stats[AudioEngine.PLUGIN_STAT_P99_US],
+                stats[AudioEngine.PLUGIN_STAT_MAX_US],
+                stats[AudioEngine.PLUGIN_STAT_SHARE_MEAN] * 100,
+                stats[AudioEngine.PLUGIN_STAT_SHARE_P99] * 100,
+                stats[AudioEngine.PLUGIN_STAT_SHARE_MAX] * 100));
+        cost.setVisibility(View.VISIBLE);
     }
 
     void addPluginDialog () {
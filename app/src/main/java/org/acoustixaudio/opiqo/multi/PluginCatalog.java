@@ -0,0 +1,127 @@
+package org.acoustixaudio.opiqo.multi;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The installed plugins, read in place from the engine's binary catalog
+ * (see PluginCatalog.hpp for the layout) through a direct buffer.
+ *
+ * Nothing is decoded up front: names and URIs are read when asked for, and
+ * a plugin's descriptor with all its ports is built the first time it is
+ * needed and kept. The buffer points into the engine, so a catalog must not
+ * be used once the engine is deleted.
+ */
+public final class PluginCatalog {
+    // PluginCatalog::kMagic, kVersion
+    private static final int MAGIC = 0x4332564c;
+    private static final int VERSION = 1;
+
+    // sizeof Header, Plugin, Port
+    private static final int HEADER_SIZE = 32;
+    private static final int PLUGIN_SIZE = 24;
+    private static final int PORT_SIZE = 28;
+
+    private final ByteBuffer data;
+    private final int pluginCount;
+    private final int pluginsOffset, portsOffset, stringsOffset;
+    private final PluginDescriptor[] descriptors;
+    private Map<String, Integer> byUri;
+
+    private PluginCatalog(ByteBuffer data) {
+        this.data = data;
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Not a plugin catalog");
+
+        pluginCount = data.getInt(16);
+        int portCount = data.getInt(20);
+        pluginsOffset = HEADER_SIZE;
+        portsOffset = pluginsOffset + pluginCount * PLUGIN_SIZE;
+        stringsOffset = portsOffset + portCount * PORT_SIZE;
+        if (stringsOffset + data.getInt(24) != data.capacity())
+            throw new IllegalArgumentException("Truncated plugin catalog");
+
+        descriptors = new PluginDescriptor[pluginCount];
+    }
+
+    /**
+     * The catalog initPlugins loaded, or null if there is none yet.
+     */
+    static PluginCatalog get() {
+        ByteBuffer buffer = AudioEngine.getCatalog();
+        return buffer == null ? null : new PluginCatalog(buffer);
+    }
+
+    public int size() { return pluginCount; }
+
+    public String uri(int plugin) { return string(pluginField(plugin, 0)); }
+    public String name(int plugin) { return string(pluginField(plugin, 4)); }
+    public String author(int plugin) { return string(pluginField(plugin, 8)); }
+    public String className(int plugin) { return string(pluginField(plugin, 12)); }
+
+    /**
+     * Everything about one plugin. Built on first use, then shared.
+     */
+    public synchronized PluginDescriptor get(int plugin) {
+        PluginDescriptor descriptor = descriptors[plugin];
+        if (descriptor != null) return descriptor;
+
+        int firstPort = pluginField(plugin, 16);
+        int portCount = pluginField(plugin, 20);
+        List<PortDescriptor> ports = new ArrayList<>(portCount);
+        PortDescriptor.Type[] types = PortDescriptor.Type.values();
+        for (int i = 0; i < portCount; i++) {
+            int at = portsOffset + (firstPort + i) * PORT_SIZE;
+            int type = data.get(at + 12) & 0xff;
+            ports.add(new PortDescriptor(
+                    data.getInt(at + 8),
+                    string(data.getInt(at)),
+                    string(data.getInt(at + 4)),
+                    type < types.length ? types[type] : PortDescriptor.Type.OTHER,
+                    data.get(at + 13) & 0xff,
+                    data.getFloat(at + 16),
+                    data.getFloat(at + 20),
+                    data.getFloat(at + 24)));
+        }
+
+        descriptor = new PluginDescriptor(uri(plugin), name(plugin),
+                author(plugin), className(plugin), ports);
+        descriptors[plugin] = descriptor;
+        return descriptor;
+    }
+
+    /**
+     * The plugin with this URI, or null if it is not installed.
+     */
+    public synchronized PluginDescriptor find(String uri) {
+        if (byUri == null) {
+            byUri = new HashMap<>(pluginCount * 2);
+            for (int i = 0; i < pluginCount; i++) byUri.put(uri(i), i);
+        }
+        Integer plugin = byUri.get(uri);
+        return plugin == null ? null : get(plugin);
+    }
+
+    private int pluginField(int plugin, int offset) {
+        if (plugin < 0 || plugin >= pluginCount)
+            throw new IndexOutOfBoundsException("No plugin " + plugin);
+        return data.getInt(pluginsOffset + plugin * PLUGIN_SIZE + offset);
+    }
+
+    // NUL-terminated UTF-8 at this offset into the string table
+    private String string(int offset) {
+        int start = stringsOffset + offset;
+        int end = start;
+        while (data.get(end) != 0) end++;
+
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = data.duplicate();
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,31 @@
+package org.acoustixaudio.opiqo.multi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An installed plugin and its ports, as read from the plugin catalog.
+ * Immutable.
+ */
+public final class PluginDescriptor {
+    public final String uri;
+    public final String name;
+    public final String author;
+    public final String className;
+    public final List<PortDescriptor> ports;
+
+    PluginDescriptor(String uri, String name, String author, String className,
+                     List<PortDescriptor> ports) {
+        this.uri = uri;
+        this.name = name;
+        this.author = author;
+        this.className = className;
+        this.ports = Collections.unmodifiableList(new ArrayList<>(ports));
+    }
+
+    @Override
+    public String toString() {
+        return "PluginDescriptor{" + uri + " \"" + name + "\", " + ports.size() + " ports}";
+    }
+}
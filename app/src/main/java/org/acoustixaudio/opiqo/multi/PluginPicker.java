@@ -0,0 +1,193 @@
+package org.acoustixaudio.opiqo.multi;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The add-pedal dialog: a search box and a class filter over the installed
+ * plugins, with the matches in a list that follows as you type.
+ *
+ * Searching happens in the engine's catalog index, which answers in well
+ * under a millisecond, so each keystroke runs a new query on the UI thread.
+ * Results come a page at a time as the list is scrolled, so only what is
+ * shown is ever decoded.
+ */
+public class PluginPicker {
+    public interface OnPicked {
+        void onPicked(String uri);
+    }
+
+    // Matches fetched per query to the index
+    static final int PAGE = 50;
+
+    private final Context context;
+    private final PluginCatalog catalog;
+    private final OnPicked onPicked;
+    private final Adapter adapter = new Adapter();
+    private AlertDialog dialog;
+    private TextView count;
+
+    private String text = "";
+    private String category = null;
+
+    public PluginPicker(Context context, PluginCatalog catalog, OnPicked onPicked) {
+        this.context = context;
+        this.catalog = catalog;
+        this.onPicked = onPicked;
+    }
+
+    public void show() {
+        View view = LayoutInflater.from(context).inflate(R.layout.add_plugin_dialog, null);
+        count = view.findViewById(R.id.count);
+
+        RecyclerView list = view.findViewById(R.id.list);
+        list.setLayoutManager(new LinearLayoutManager(context));
+        list.setAdapter(adapter);
+
+        EditText search = view.findViewById(R.id.search);
+        search.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int before, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int after) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                text = s.toString();
+                query();
+            }
+        });
+
+        // First entry is no filter
+        List<String> categories = new ArrayList<>();
+        categories.add("All types");
+        String[] classes = AudioEngine.getPluginCategories();
+        if (classes != null)
+            for (String name : classes) categories.add(name);
+
+        Spinner spinner = view.findViewById(R.id.category);
+        spinner.setAdapter(new ArrayAdapter<>(context, android.R.layout.simple_spinner_dropdown_item, categories));
+        spinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View v, int position, long id) {
+                category = position == 0 ? null : categories.get(position);
+                query();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {}
+        });
+
+        query();
+        dialog = new AlertDialog.Builder(context)
+                .setView(view)
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    // Start over with the current filters
+    private void query() {
+        adapter.reset(fetch(0));
+        count.setText(String.format(Locale.US, "%d plugins", adapter.total));
+    }
+
+    private int[] fetch(int offset) {
+        int[] result = AudioEngine.searchPlugins(text, category, -1, -1, offset, PAGE);
+        return result == null ? new int[] {0} : result;
+    }
+
+    private class Adapter extends RecyclerView.Adapter<Adapter.Holder> {
+        final List<Integer> plugins = new ArrayList<>();
+        int total = 0;
+        int generation = 0;         // bumped by reset, drops pages still pending
+        boolean loading = false;
+
+        class Holder extends RecyclerView.ViewHolder {
+            final TextView name, details;
+            int plugin;
+
+            Holder(View view) {
+                super(view);
+                name = view.findViewById(R.id.name);
+                details = view.findViewById(R.id.details);
+                view.setOnClickListener(v -> {
+                    dialog.dismiss();
+                    onPicked.onPicked(catalog.uri(plugin));
+                });
+            }
+        }
+
+        void reset(int[] page) {
+            generation++;
+            loading = false;
+            plugins.clear();
+            total = page[0];
+            append(page);
+            notifyDataSetChanged();
+        }
+
+        void append(int[] page) {
+            for (int i = 1; i < page.length; i++) plugins.add(page[i]);
+        }
+
+        // Not from inside a bind: the list may not change size while it
+        // lays out
+        void loadMore(View anchor) {
+            if (loading || plugins.size() >= total) return;
+            loading = true;
+            int expected = generation;
+            anchor.post(() -> {
+                if (expected != generation) return;
+                loading = false;
+                int from = plugins.size();
+                int[] page = fetch(from);
+                append(page);
+                notifyItemRangeInserted(from, page.length - 1);
+            });
+        }
+
+        @NonNull
+        @Override
+        public Holder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            return new Holder(LayoutInflater.from(context).inflate(R.layout.plugin_item, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull Holder holder, int position) {
+            holder.plugin = plugins.get(position);
+            holder.name.setText(catalog.name(holder.plugin));
+            String className = catalog.className(holder.plugin);
+            String author = catalog.author(holder.plugin);
+            holder.details.setText(className.isEmpty() ? author
+                    : author.isEmpty() ? className : author + " · " + className);
+
+            // Close to the end of what is loaded, get the next page
+            if (position >= plugins.size() - PAGE / 4)
+                loadMore(holder.itemView);
+        }
+
+        @Override
+        public int getItemCount() {
+            return plugins.size();
+        }
+    }
+}
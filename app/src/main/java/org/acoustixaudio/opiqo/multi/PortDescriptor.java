@@ -0,0 +1,53 @@
+package org.acoustixaudio.opiqo.multi;
+
+/**
+ * One port of an installed plugin, as read from the plugin catalog.
+ * Immutable.
+ */
+public final class PortDescriptor {
+    // Same order as PluginCatalog::PortType
+    public enum Type { OTHER, AUDIO, CONTROL, ATOM, CV }
+
+    // PluginCatalog::PortFlags
+    static final int FLAG_INPUT = 1;
+    static final int FLAG_TOGGLED = 1 << 1;
+    static final int FLAG_INTEGER = 1 << 2;
+    static final int FLAG_ENUMERATION = 1 << 3;
+    static final int FLAG_LOGARITHMIC = 1 << 4;
+    static final int FLAG_TRIGGER = 1 << 5;
+    static final int FLAG_MIDI = 1 << 6;
+
+    public final int index;
+    public final String symbol;
+    public final String name;
+    public final Type type;
+    public final float min, max, def;    // 0 for anything but control ports
+    private final int flags;
+
+    PortDescriptor(int index, String symbol, String name, Type type, int flags,
+                   float min, float max, float def) {
+        this.index = index;
+        this.symbol = symbol;
+        this.name = name;
+        this.type = type;
+        this.flags = flags;
+        this.min = min;
+        this.max = max;
+        this.def = def;
+    }
+
+    public boolean isControl() { return type == Type.CONTROL; }
+    public boolean isInput() { return (flags & FLAG_INPUT) != 0; }
+    public boolean isToggled() { return (flags & FLAG_TOGGLED) != 0; }
+    public boolean isInteger() { return (flags & FLAG_INTEGER) != 0; }
+    public boolean isEnumeration() { return (flags & FLAG_ENUMERATION) != 0; }
+    public boolean isLogarithmic() { return (flags & FLAG_LOGARITHMIC) != 0; }
+    public boolean isTrigger() { return (flags & FLAG_TRIGGER) != 0; }
+    public boolean isMidi() { return (flags & FLAG_MIDI) != 0; }
+
+    @Override
+    public String toString() {
+        return "PortDescriptor{" + index + " " + symbol + " " + type
+                + (isControl() ? " [" + min + ", " + max + "] = " + def : "") + "}";
+    }
+}
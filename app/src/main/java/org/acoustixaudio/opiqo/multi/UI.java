@@ -10,22 +10,22 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.google.android.material.materialswitch.MaterialSwitch;
 import com.google.android.material.slider.Slider;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.util.Iterator;
+import java.nio.ByteBuffer;
 
 public class UI extends LinearLayout {
     int position;
-    JSONObject pluginInfo;
+    PluginDescriptor plugin;
     Context context;
+    // Sliders write here directly; bound to this plugin, not the position.
+    // Points into the engine's slot, see release()
+    ByteBuffer surface;
     static final String TAG = "UI";
     public View add = null ;
 
-    public UI(Context _context, String _pluginInfo, int _position) {
+    public UI(Context _context, PluginDescriptor _plugin, int _position) {
         super(_context);
         context = _context;
         position = _position;
@@ -35,51 +35,47 @@ public class UI extends LinearLayout {
         setOrientation(VERTICAL);
         setPadding(20, 20, 20, 20);
 
-        try {
-            pluginInfo = new JSONObject(_pluginInfo);
-            build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            Toast.makeText(_context, e.getMessage(), Toast.LENGTH_SHORT).show();
-        }
+        plugin = _plugin;
+        build();
     }
 
 
-    void build () throws JSONException {
+    void build () {
         try {
-            JSONArray ports = pluginInfo.getJSONArray("port");
-            Log.d(TAG, "build: ports " + ports);
+            Log.d(TAG, "build: " + plugin);
             TextView title = new TextView(context);
-            title.setText(pluginInfo.getString("name"));
+            title.setText(plugin.name);
             title.setTextSize(40);
             title.setPadding(0, 0, 0, 40);
             addView(title);
 
-            for (int i = 0; i < ports.length(); i++) {
-                JSONObject port = ports.getJSONObject(i);
-                Log.d(TAG, "build: port " + port);
+            surface = AudioEngine.getControlSurface(position);
+
+            MaterialSwitch bypass = new MaterialSwitch(context);
+            bypass.setText("Bypass");
+            bypass.setOnCheckedChangeListener((b, checked) -> AudioEngine.setBypass(position, checked));
+            addView(bypass);
 
-                if (! port.getString("type").equals("control"))
+            for (PortDescriptor port : plugin.ports) {
+                if (! port.isControl())
                     continue;
 
                 Slider slider = new Slider(context);
-                slider.setValueFrom((float) port.getDouble("min"));
-                slider.setValueTo((float) port.getDouble("max"));
-                slider.setValue((float) port.getDouble("default"));
+                slider.setValueFrom(port.min);
+                slider.setValueTo(port.max);
+                slider.setValue(port.def);
                 slider.setLabelFormatter(value -> String.format("%.2f", value));
                 slider.addOnChangeListener((s, value, fromUser) -> {
                     if (fromUser) {
-                        try {
-                            AudioEngine.setValue(position, port.getInt("index"), value);
-                        } catch (JSONException e) {
-                            Toast.makeText(context, e.getMessage(), Toast.LENGTH_SHORT).show();
-                            throw new RuntimeException(e);
-                        }
+                        if (surface != null)
+                            AudioEngine.setSurfaceValue(surface, port.index, value);
+                        else
+                            AudioEngine.setValue(position, port.index, value);
                     }
                 });
 
                 TextView label = new TextView(context);
-                label.setText(port.getString("name"));
+                label.setText(port.symbol);
                 label.setTextSize(16);
                 label.setPadding(0, 0, 0, 20);
 
@@ -100,6 +96,7 @@ public class UI extends LinearLayout {
         del.setLayoutParams(params);
         del.setText("Delete");
         del.setOnClickListener(v -> {
+            release();
             AudioEngine.deletePlugin(position);
             if (add != null)
                  add.setVisibility(View.VISIBLE);
@@ -109,4 +106,13 @@ public class UI extends LinearLayout {
 
         addView(del);
     }
+
+    /**
+     * Stop writing to the plugin's control surface. Call before the plugin is
+     * replaced or deleted: the engine frees the surface with it, and the
+     * sliders fall back to setValue, which checks the slot.
+     */
+    void release () {
+        surface = null;
+    }
 }